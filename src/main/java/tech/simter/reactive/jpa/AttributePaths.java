@@ -0,0 +1,23 @@
+package tech.simter.reactive.jpa;
+
+import java.util.regex.Pattern;
+
+/**
+ * The attribute path validation shared by {@link Specification} and {@link FetchPlan}.
+ */
+final class AttributePaths {
+  private static final Pattern PATH = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(\\.[A-Za-z_$][A-Za-z0-9_$]*)*");
+
+  private AttributePaths() {
+  }
+
+  /**
+   * @param path the attribute path, such as 'title' or 'author.name'
+   * @return the same path
+   * @throws IllegalArgumentException if the path is not dot separated java identifiers
+   */
+  static String check(String path) {
+    if (!PATH.matcher(path).matches()) throw new IllegalArgumentException("Invalid attribute path: " + path);
+    return path;
+  }
+}
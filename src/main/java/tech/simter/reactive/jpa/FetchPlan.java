@@ -0,0 +1,82 @@
+package tech.simter.reactive.jpa;
+
+import javax.persistence.EntityGraph;
+import javax.persistence.NamedEntityGraph;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The associations to load with the entities, so they are usable after the {@link javax.persistence.EntityManager} closed.
+ * <p>
+ * It is a {@link NamedEntityGraph} or an ad-hoc {@link EntityGraph} by attribute paths, applied as a load graph.
+ * By default the associations are fetched by the same query. In {@link #batch()} mode, the associations of the
+ * whole result list are fetched level by level instead, one extra query per attribute of each level keyed by the
+ * owner ids of the previous level, this avoid the in-memory paging, the cartesian product of sibling collections
+ * of a collection fetch and the N+1 selects of lazy loading.
+ */
+public final class FetchPlan {
+  private final String graphName;
+  private final List<String> attributePaths;
+  private final boolean batch;
+
+  private FetchPlan(String graphName, List<String> attributePaths, boolean batch) {
+    this.graphName = graphName;
+    this.attributePaths = attributePaths;
+    this.batch = batch;
+  }
+
+  /**
+   * @param graphName the name of the {@link NamedEntityGraph}
+   * @return the fetch plan of the named entity graph
+   */
+  public static FetchPlan named(String graphName) {
+    return new FetchPlan(graphName, Collections.emptyList(), false);
+  }
+
+  /**
+   * @param attributePaths the attribute paths to fetch, such as 'author' or 'chapters.pages'
+   * @return the fetch plan of an ad-hoc entity graph
+   * @throws IllegalArgumentException if a path is invalid
+   */
+  public static FetchPlan of(String... attributePaths) {
+    for (String path : attributePaths) AttributePaths.check(path);
+    return new FetchPlan(null, Collections.unmodifiableList(Arrays.asList(attributePaths.clone())), false);
+  }
+
+  /**
+   * @return the same attribute paths fetched by one extra query per attribute for the whole result list
+   * @throws IllegalStateException if this is a named entity graph plan
+   */
+  public FetchPlan batch() {
+    if (graphName != null) throw new IllegalStateException("Batch fetch only support attribute paths");
+    return new FetchPlan(null, attributePaths, true);
+  }
+
+  /**
+   * @return the name of the named entity graph or null if this is an ad-hoc plan
+   */
+  public String getGraphName() {
+    return graphName;
+  }
+
+  /**
+   * @return the attribute paths of the ad-hoc plan
+   */
+  public List<String> getAttributePaths() {
+    return attributePaths;
+  }
+
+  /**
+   * @return true if fetch the associations by extra queries
+   */
+  public boolean isBatch() {
+    return batch;
+  }
+
+  @Override
+  public String toString() {
+    return graphName != null ? "FetchPlan{graph=" + graphName + "}"
+      : "FetchPlan{paths=" + attributePaths + ", batch=" + batch + "}";
+  }
+}
@@ -0,0 +1,55 @@
+package tech.simter.reactive.jpa;
+
+import java.util.List;
+
+/**
+ * A page of query results with the total count of the unpaged query.
+ *
+ * @param <T> the type of the page rows
+ */
+public final class Page<T> {
+  private final List<T> rows;
+  private final int offset;
+  private final int limit;
+  private final long total;
+
+  public Page(List<T> rows, int offset, int limit, long total) {
+    this.rows = rows;
+    this.offset = offset;
+    this.limit = limit;
+    this.total = total;
+  }
+
+  /**
+   * @return the rows of this page
+   */
+  public List<T> getRows() {
+    return rows;
+  }
+
+  /**
+   * @return the position of the first row, numbered from 0
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the maximum number of rows of this page, 0 means unlimited
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the total count of rows matched by the unpaged query
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return "Page{offset=" + offset + ", limit=" + limit + ", total=" + total + ", rows=" + rows + "}";
+  }
+}
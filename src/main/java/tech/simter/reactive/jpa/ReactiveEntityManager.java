@@ -1,8 +1,11 @@
 package tech.simter.reactive.jpa;
 
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.persistence.EntityManager;
+import java.util.Collection;
 
 /**
  * Some method encapsulation from {@link EntityManager} with reactive result.
@@ -21,6 +24,8 @@ public interface ReactiveEntityManager {
 
   /**
    * Remove the entities in a transaction with auto commit when this {@link Mono} be subscribed.
+   * <p>
+   * The entities are loaded by one query per entity class before removing.
    *
    * @param entities the entities to remove
    * @param <E>      the entity type
@@ -28,6 +33,47 @@ public interface ReactiveEntityManager {
    */
   <E> Mono<Void> remove(E... entities);
 
+  /**
+   * Merge the state of the entities in a transaction with auto commit when this {@link Flux} be subscribed.
+   * <p>
+   * The existing state of the entities is loaded by one query per entity class instead of one query per entity,
+   * and the entities that do not exist are persisted as new.
+   * <p>
+   * Like {@link EntityManager#merge(Object)} the caller should use the returned instances:
+   * an existing entity is merged to a loaded copy, but a new entity without association is persisted
+   * and returned itself, and the entities with the same id are merged to the same instance with the state
+   * of the last one. A new entity with associations is merged by {@link EntityManager#merge(Object)}
+   * for its cascade MERGE semantics, which costs one more select for it.
+   *
+   * @param entities the entities to merge
+   * @param <E>      the entity type
+   * @return a {@link Flux} with the managed instances that the state was merged to, in the order of the entities
+   */
+  <E> Flux<E> merge(E... entities);
+
+  /**
+   * Merge the state of the entities in batches, each batch in a transaction with auto commit.
+   *
+   * @param entities the entities to merge
+   * @param <E>      the entity type
+   * @return a {@link Flux} with the managed instances that the state was merged to
+   * @see #merge(Object[])
+   */
+  <E> Flux<E> mergeAll(Publisher<E> entities);
+
+  /**
+   * Remove the entities by a bulk delete statement in a transaction with auto commit when this {@link Mono} be subscribed.
+   * <p>
+   * The entities are not loaded, so cascade remove and entity lifecycle callbacks are not applied.
+   *
+   * @param entityClass the entity class, it must have a single basic id attribute
+   * @param ids         the primary keys
+   * @param <E>         the entity type
+   * @return a {@link Mono} with the number of entities removed or {@link Mono#error(Throwable)} with
+   * {@link IllegalArgumentException} if the entity does not have a single basic id attribute
+   */
+  <E> Mono<Integer> removeById(Class<E> entityClass, Collection<?> ids);
+
   /**
    * Find by primary key in a transaction with auto commit when this {@link Mono} be subscribed.
    *
@@ -37,6 +83,18 @@ public interface ReactiveEntityManager {
    */
   <T> Mono<T> find(Class<T> entityClass, Object primaryKey);
 
+  /**
+   * Find by primary key with the associations in the fetch plan loaded.
+   * <p>
+   * The batch mode of the fetch plan makes no difference for a single entity.
+   *
+   * @param entityClass entity class
+   * @param primaryKey  primary key
+   * @param fetchPlan   the associations to load
+   * @return a {@link Mono} with the found entity or {@link Mono#empty()} if the entity does not exist
+   */
+  <T> Mono<T> find(Class<T> entityClass, Object primaryKey, FetchPlan fetchPlan);
+
   /**
    * Reactive encapsulation for {@link EntityManager#createQuery(String, Class)}.
    *
@@ -53,4 +111,17 @@ public interface ReactiveEntityManager {
    * @return a {@link Mono} with the new query instance
    */
   ReactiveQuery createQuery(String qlString);
+
+  /**
+   * Create a query of the entity by a {@link Specification}.
+   * <p>
+   * The specification is rendered to a normalized JPQL, so equivalent filters share the same query string.
+   *
+   * @param entityClass   the entity class
+   * @param specification the where condition
+   * @param orderBy       the order by attribute paths, each one could be end with ' asc' or ' desc', such as 'title desc'
+   * @return the new query instance
+   * @throws IllegalArgumentException if the class is not an entity or the order by is invalid
+   */
+  <T> ReactiveTypedQuery<T> createQuery(Class<T> entityClass, Specification<T> specification, String... orderBy);
 }
\ No newline at end of file
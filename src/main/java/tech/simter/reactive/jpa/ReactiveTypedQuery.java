@@ -4,6 +4,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.persistence.*;
+import java.time.Duration;
 
 /**
  * A interface relative to {@link TypedQuery} but with minimal usage api for reactive world.
@@ -40,6 +41,17 @@ public interface ReactiveTypedQuery<T> {
    */
   ReactiveTypedQuery<T> setMaxResults(int maxResult);
 
+  /**
+   * Set the associations to load with the result entities.
+   * <p>
+   * The batch mode of the fetch plan only take effect on {@link #getResultList()},
+   * the other methods load the associations by the same query as the default mode.
+   *
+   * @param fetchPlan the fetch plan, the query must select the entity of the result class
+   * @return the same query instance
+   */
+  ReactiveTypedQuery<T> setFetchPlan(FetchPlan fetchPlan);
+
   /**
    * Execute a SELECT query that returns a single result.
    *
@@ -73,4 +85,57 @@ public interface ReactiveTypedQuery<T> {
    * </ul>
    */
   Flux<T> getResultList();
+
+  /**
+   * Count the results of this query without loading them.
+   * <p>
+   * The count query is derived from this query by stripping the ORDER BY clause
+   * and rewriting the select clause to {@code count(*)} or {@code count(distinct ...)}.
+   * The first result and max results settings are ignored.
+   *
+   * @return {@link Mono} with the total count or {@link Mono#error(Throwable)} with:
+   * <ul>
+   * <li>{@link IllegalArgumentException} if the count query could not be derived from this query, such as a GROUP BY query.
+   * <li>{@link QueryTimeoutException} if the query execution exceeds the query timeout value set and only the statement is rolled back.
+   * <li>{@link PersistenceException} if the query execution exceeds the query timeout value set and the transaction is rolled back.
+   * </ul>
+   */
+  Mono<Long> count();
+
+  /**
+   * Check whether this query has any result without loading it.
+   * <p>
+   * The exists query is derived from this query by stripping the ORDER BY clause,
+   * rewriting the select clause to a constant and fetching at most one row.
+   *
+   * @return {@link Mono} with true if this query has at least one result or {@link Mono#error(Throwable)} with:
+   * <ul>
+   * <li>{@link QueryTimeoutException} if the query execution exceeds the query timeout value set and only the statement is rolled back.
+   * <li>{@link PersistenceException} if the query execution exceeds the query timeout value set and the transaction is rolled back.
+   * </ul>
+   */
+  Mono<Boolean> exists();
+
+  /**
+   * Execute this query as a page query.
+   * <p>
+   * The rows are limited by {@link #setFirstResult(int)} and {@link #setMaxResults(int)},
+   * and the total is the result of {@link #count()}. Both queries run concurrently.
+   *
+   * @return {@link Mono} with the page or {@link Mono#error(Throwable)} with the error of {@link #getResultList()}
+   * or {@link #count()}
+   */
+  Mono<Page<T>> getPage();
+
+  /**
+   * Execute this query as a page query with a short-lived cache for the total count.
+   * <p>
+   * The total count of the same count query with the same parameters is reused during the ttl,
+   * this avoid re-counting an expensive filter while paging through it.
+   *
+   * @param countCacheTtl the time to live of the cached total count, zero or negative means no cache
+   * @return {@link Mono} with the page or {@link Mono#error(Throwable)} with the error of {@link #getResultList()}
+   * or {@link #count()}
+   */
+  Mono<Page<T>> getPage(Duration countCacheTtl);
 }
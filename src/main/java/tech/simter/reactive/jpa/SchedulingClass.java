@@ -0,0 +1,63 @@
+package tech.simter.reactive.jpa;
+
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+/**
+ * The scheduling class of a blocking JPA operation.
+ * <p>
+ * It is selected through the Reactor {@link Context} with key {@link #CONTEXT_KEY},
+ * and take effect when the JPA {@link reactor.core.scheduler.Scheduler} is priority-aware.
+ * Without a scheduling class in the {@link Context}, the operation is {@link #INTERACTIVE}.
+ * <p>
+ * Usage: {@code rem.find(Book.class, id).contextWrite(SchedulingClass.BULK.toContext())}.
+ */
+public enum SchedulingClass {
+  /**
+   * User-facing operations that need a low latency.
+   */
+  INTERACTIVE(8),
+  /**
+   * Background operations that could wait a little.
+   */
+  BACKGROUND(3),
+  /**
+   * Batch operations such as export or synchronization jobs.
+   */
+  BULK(1);
+
+  /**
+   * The Reactor {@link Context} key of the scheduling class.
+   */
+  public static final String CONTEXT_KEY = SchedulingClass.class.getName();
+
+  private final int weight;
+
+  SchedulingClass(int weight) {
+    this.weight = weight;
+  }
+
+  /**
+   * @return the relative dispatch weight of this class
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return a {@link Context} with this scheduling class
+   */
+  public Context toContext() {
+    return Context.of(CONTEXT_KEY, this);
+  }
+
+  /**
+   * Get the scheduling class from the Reactor {@link Context}.
+   *
+   * @param context the context
+   * @return the scheduling class in the context or {@link #INTERACTIVE} if absent
+   */
+  public static SchedulingClass from(ContextView context) {
+    return context.getOrDefault(CONTEXT_KEY, INTERACTIVE);
+  }
+}
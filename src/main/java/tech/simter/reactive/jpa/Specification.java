@@ -0,0 +1,274 @@
+package tech.simter.reactive.jpa;
+
+import javax.persistence.metamodel.SingularAttribute;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A composable where condition of the entity type {@code T} for building dynamic queries.
+ * <p>
+ * The specifications are normalized when combined: nested AND/OR are flattened, duplicate conditions are removed
+ * and the operands are sorted by their JPQL shape. So equivalent filters with different values or a different order
+ * render to the same JPQL string with the same parameter names, which lets the query plan and statement caches be hit.
+ * <p>
+ * Usage: {@code rem.createQuery(Book.class, Specification.<Book>eq("status", 1).and(Specification.like("title", "%a%")), "title")}.
+ *
+ * @param <T> the entity type
+ */
+@FunctionalInterface
+public interface Specification<T> {
+  /**
+   * The marker of a value in the rendered condition, a character that could not occur in JPQL.
+   */
+  char VALUE_MARKER = '\u0000';
+
+  /**
+   * Append the canonical JPQL condition of this specification.
+   * <p>
+   * Each value must be appended to the {@code values} list with a {@link #VALUE_MARKER} in the condition.
+   * Nothing appended means match all. A custom condition is enclosed in parentheses when combined,
+   * so it could contain its own {@code and}/{@code or}.
+   *
+   * @param alias  the entity alias in the query
+   * @param jpql   the JPQL to append to
+   * @param values the values to append to
+   */
+  void render(String alias, StringBuilder jpql, List<Object> values);
+
+  /**
+   * Render this specification to a JPQL condition with named parameters {@code p0, p1, ...}.
+   *
+   * @param alias  the entity alias in the query
+   * @param params the map to put the parameter values to
+   * @return the JPQL condition or an empty string if match all
+   * @throws IllegalArgumentException if the value markers not match the values
+   */
+  default String toJpql(String alias, Map<String, Object> params) {
+    StringBuilder shape = new StringBuilder();
+    List<Object> values = new ArrayList<>();
+    render(alias, shape, values);
+    StringBuilder jpql = new StringBuilder(shape.length() + values.size() * 2);
+    int index = 0;
+    for (int i = 0; i < shape.length(); i++) {
+      char c = shape.charAt(i);
+      if (c == VALUE_MARKER) {
+        if (index >= values.size()) throw new IllegalArgumentException(
+          "More value markers than the " + values.size() + " values in the condition: "
+          + shape.toString().replace(VALUE_MARKER, '?'));
+        String name = "p" + index;
+        params.put(name, values.get(index++));
+        jpql.append(':').append(name);
+      } else jpql.append(c);
+    }
+    if (index != values.size()) throw new IllegalArgumentException(
+      "The " + values.size() + " values not match the " + index + " value markers in the condition: "
+        + shape.toString().replace(VALUE_MARKER, '?'));
+    return jpql.toString();
+  }
+
+  /**
+   * @param other the other specification
+   * @return a specification matches both this and the other
+   */
+  default Specification<T> and(Specification<T> other) {
+    return allOf(Arrays.asList(this, other));
+  }
+
+  /**
+   * @param other the other specification
+   * @return a specification matches this or the other
+   */
+  default Specification<T> or(Specification<T> other) {
+    return anyOf(Arrays.asList(this, other));
+  }
+
+  /**
+   * @return a specification matches when this not match
+   */
+  default Specification<T> negate() {
+    return not(this);
+  }
+
+  /**
+   * @return a specification matches all
+   */
+  static <T> Specification<T> all() {
+    return SpecificationNodes.all();
+  }
+
+  /**
+   * @return a specification matches all of the specifications, match all if empty
+   */
+  @SafeVarargs
+  static <T> Specification<T> allOf(Specification<T>... specifications) {
+    return allOf(Arrays.asList(specifications));
+  }
+
+  /**
+   * @return a specification matches all of the specifications, match all if empty
+   */
+  static <T> Specification<T> allOf(Collection<? extends Specification<T>> specifications) {
+    return SpecificationNodes.composite(true, specifications);
+  }
+
+  /**
+   * @return a specification matches any of the specifications, match nothing if empty
+   */
+  @SafeVarargs
+  static <T> Specification<T> anyOf(Specification<T>... specifications) {
+    return anyOf(Arrays.asList(specifications));
+  }
+
+  /**
+   * @return a specification matches any of the specifications, match nothing if empty
+   */
+  static <T> Specification<T> anyOf(Collection<? extends Specification<T>> specifications) {
+    return SpecificationNodes.composite(false, specifications);
+  }
+
+  /**
+   * @return a specification matches when the specification not match
+   */
+  static <T> Specification<T> not(Specification<T> specification) {
+    return SpecificationNodes.not(specification);
+  }
+
+  /**
+   * @param path  the attribute path, such as 'title' or 'author.name'
+   * @param value the value, null means the attribute is null
+   * @return a specification matches the attribute equals to the value
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> eq(String path, Object value) {
+    return value == null ? isNull(path) : SpecificationNodes.compare(path, "=", value);
+  }
+
+  /**
+   * @param path  the attribute path
+   * @param value the value, null means the attribute is not null
+   * @return a specification matches the attribute not equals to the value
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> ne(String path, Object value) {
+    return value == null ? isNotNull(path) : SpecificationNodes.compare(path, "<>", value);
+  }
+
+  /**
+   * @return a specification matches the attribute greater than the value
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> gt(String path, Comparable<?> value) {
+    return SpecificationNodes.compare(path, ">", value);
+  }
+
+  /**
+   * @return a specification matches the attribute greater than or equals to the value
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> ge(String path, Comparable<?> value) {
+    return SpecificationNodes.compare(path, ">=", value);
+  }
+
+  /**
+   * @return a specification matches the attribute less than the value
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> lt(String path, Comparable<?> value) {
+    return SpecificationNodes.compare(path, "<", value);
+  }
+
+  /**
+   * @return a specification matches the attribute less than or equals to the value
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> le(String path, Comparable<?> value) {
+    return SpecificationNodes.compare(path, "<=", value);
+  }
+
+  /**
+   * @param pattern the like pattern, such as '%abc%'
+   * @return a specification matches the attribute like the pattern
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> like(String path, String pattern) {
+    return SpecificationNodes.compare(path, "like", pattern);
+  }
+
+  /**
+   * @param values the values, match nothing if empty
+   * @return a specification matches the attribute in the values
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> in(String path, Collection<?> values) {
+    if (values.size() == 1 && values.iterator().next() != null) return eq(path, values.iterator().next());
+    return SpecificationNodes.in(path, values);
+  }
+
+  /**
+   * @return a specification matches the attribute is null
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> isNull(String path) {
+    return SpecificationNodes.nullCheck(path, true);
+  }
+
+  /**
+   * @return a specification matches the attribute is not null
+   * @throws IllegalArgumentException if the path is invalid
+   */
+  static <T> Specification<T> isNotNull(String path) {
+    return SpecificationNodes.nullCheck(path, false);
+  }
+
+  /**
+   * Type-safe version of {@link #eq(String, Object)} with the JPA static metamodel.
+   */
+  static <T, V> Specification<T> eq(SingularAttribute<? super T, V> attribute, V value) {
+    return eq(attribute.getName(), value);
+  }
+
+  /**
+   * Type-safe version of {@link #ne(String, Object)} with the JPA static metamodel.
+   */
+  static <T, V> Specification<T> ne(SingularAttribute<? super T, V> attribute, V value) {
+    return ne(attribute.getName(), value);
+  }
+
+  /**
+   * Type-safe version of {@link #gt(String, Comparable)} with the JPA static metamodel.
+   */
+  static <T, V extends Comparable<? super V>> Specification<T> gt(SingularAttribute<? super T, V> attribute, V value) {
+    return gt(attribute.getName(), value);
+  }
+
+  /**
+   * Type-safe version of {@link #ge(String, Comparable)} with the JPA static metamodel.
+   */
+  static <T, V extends Comparable<? super V>> Specification<T> ge(SingularAttribute<? super T, V> attribute, V value) {
+    return ge(attribute.getName(), value);
+  }
+
+  /**
+   * Type-safe version of {@link #lt(String, Comparable)} with the JPA static metamodel.
+   */
+  static <T, V extends Comparable<? super V>> Specification<T> lt(SingularAttribute<? super T, V> attribute, V value) {
+    return lt(attribute.getName(), value);
+  }
+
+  /**
+   * Type-safe version of {@link #le(String, Comparable)} with the JPA static metamodel.
+   */
+  static <T, V extends Comparable<? super V>> Specification<T> le(SingularAttribute<? super T, V> attribute, V value) {
+    return le(attribute.getName(), value);
+  }
+
+  /**
+   * Type-safe version of {@link #in(String, Collection)} with the JPA static metamodel.
+   */
+  static <T, V> Specification<T> in(SingularAttribute<? super T, V> attribute, Collection<? extends V> values) {
+    return in(attribute.getName(), values);
+  }
+}
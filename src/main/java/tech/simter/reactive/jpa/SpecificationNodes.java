@@ -0,0 +1,180 @@
+package tech.simter.reactive.jpa;
+
+import java.util.*;
+
+/**
+ * The normalized {@link Specification} implementations.
+ */
+final class SpecificationNodes {
+  private static final Specification<?> ALL = (alias, jpql, values) -> {
+  };
+  private static final Specification<?> NONE = (alias, jpql, values) -> jpql.append("1 = 0");
+
+  private SpecificationNodes() {
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> Specification<T> all() {
+    return (Specification<T>) ALL;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> Specification<T> none() {
+    return (Specification<T>) NONE;
+  }
+
+  static <T> Specification<T> compare(String path, String operator, Object value) {
+    AttributePaths.check(path);
+    return new Leaf<>((alias, jpql, values) -> {
+      jpql.append(alias).append('.').append(path).append(' ').append(operator).append(' ').append(Specification.VALUE_MARKER);
+      values.add(value);
+    });
+  }
+
+  static <T> Specification<T> in(String path, Collection<?> collection) {
+    AttributePaths.check(path);
+    if (collection.isEmpty()) return none();
+    return new Leaf<>((alias, jpql, values) -> {
+      jpql.append(alias).append('.').append(path).append(" in ").append(Specification.VALUE_MARKER);
+      values.add(collection);
+    });
+  }
+
+  static <T> Specification<T> nullCheck(String path, boolean isNull) {
+    AttributePaths.check(path);
+    return new Leaf<>((alias, jpql, values) -> jpql.append(alias).append('.').append(path)
+      .append(isNull ? " is null" : " is not null"));
+  }
+
+  static <T> Specification<T> not(Specification<T> specification) {
+    if (specification == ALL) return none();
+    if (specification == NONE) return all();
+    if (specification instanceof Not) return ((Not<T>) specification).specification;
+    return new Not<>(specification);
+  }
+
+  /**
+   * Create a flattened, deduplicated and sorted AND/OR composite.
+   */
+  static <T> Specification<T> composite(boolean and, Collection<? extends Specification<T>> specifications) {
+    // flatten the nested composites with the same operator
+    List<Specification<T>> flattened = new ArrayList<>();
+    for (Specification<T> specification : specifications) {
+      if (specification instanceof Composite && ((Composite<T>) specification).and == and)
+        flattened.addAll(((Composite<T>) specification).operands);
+      else flattened.add(specification);
+    }
+
+    // remove the identity operands and short circuit the absorbing operands
+    Specification<T> identity = and ? all() : none();
+    Specification<T> absorbing = and ? none() : all();
+    Map<Rendered, Specification<T>> operands = new TreeMap<>();
+    int order = 0;
+    for (Specification<T> specification : flattened) {
+      if (specification == absorbing) return absorbing;
+      if (specification == identity) continue;
+      Rendered rendered = Rendered.of(specification, order++);
+      if (rendered.shape.isEmpty()) {
+        if (and) continue;
+        else return all();
+      }
+      operands.putIfAbsent(rendered, specification);
+    }
+
+    if (operands.isEmpty()) return identity;
+    if (operands.size() == 1) return operands.values().iterator().next();
+    return new Composite<>(and, new ArrayList<>(operands.values()));
+  }
+
+  /**
+   * A built-in single condition, no need to be enclosed in parentheses when combined.
+   */
+  private static final class Leaf<T> implements Specification<T> {
+    private final Specification<T> condition;
+
+    Leaf(Specification<T> condition) {
+      this.condition = condition;
+    }
+
+    @Override
+    public void render(String alias, StringBuilder jpql, List<Object> values) {
+      condition.render(alias, jpql, values);
+    }
+  }
+
+  private static final class Not<T> implements Specification<T> {
+    private final Specification<T> specification;
+
+    Not(Specification<T> specification) {
+      this.specification = specification;
+    }
+
+    @Override
+    public void render(String alias, StringBuilder jpql, List<Object> values) {
+      StringBuilder condition = new StringBuilder();
+      List<Object> conditionValues = new ArrayList<>();
+      specification.render(alias, condition, conditionValues);
+      // not match all is match nothing
+      if (condition.length() == 0) jpql.append("1 = 0");
+      else {
+        jpql.append("not (").append(condition).append(')');
+        values.addAll(conditionValues);
+      }
+    }
+  }
+
+  private static final class Composite<T> implements Specification<T> {
+    private final boolean and;
+    private final List<Specification<T>> operands;
+
+    Composite(boolean and, List<Specification<T>> operands) {
+      this.and = and;
+      this.operands = operands;
+    }
+
+    @Override
+    public void render(String alias, StringBuilder jpql, List<Object> values) {
+      for (int i = 0; i < operands.size(); i++) {
+        Specification<T> operand = operands.get(i);
+        if (i > 0) jpql.append(and ? " and " : " or ");
+        // a custom condition could contain its own and/or, only the built-in single conditions are not enclosed
+        boolean nested = !(operand instanceof Leaf || operand instanceof Not);
+        if (nested) jpql.append('(');
+        operand.render(alias, jpql, values);
+        if (nested) jpql.append(')');
+      }
+    }
+  }
+
+  /**
+   * The rendered shape and values of a specification, ordered by shape first for a canonical operands order.
+   */
+  private static final class Rendered implements Comparable<Rendered> {
+    private static final String ALIAS = "_";
+    private final String shape;
+    private final List<Object> values;
+    private final int order;
+
+    private Rendered(String shape, List<Object> values, int order) {
+      this.shape = shape;
+      this.values = values;
+      this.order = order;
+    }
+
+    static Rendered of(Specification<?> specification, int order) {
+      StringBuilder shape = new StringBuilder();
+      List<Object> values = new ArrayList<>();
+      specification.render(ALIAS, shape, values);
+      return new Rendered(shape.toString(), values, order);
+    }
+
+    @Override
+    public int compareTo(Rendered other) {
+      int c = shape.compareTo(other.shape);
+      if (c != 0 || values.equals(other.values)) return c;
+      // same shape with different values, the order does not change the rendered jpql
+      c = String.valueOf(values).compareTo(String.valueOf(other.values));
+      return c != 0 ? c : Integer.compare(order, other.order);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package tech.simter.reactive.jpa.impl;
+
+import java.util.regex.Pattern;
+
+/**
+ * Some JPQL string manipulation for deriving queries from an existing query.
+ * <p>
+ * Only the top level clauses are inspected, sub queries in parentheses and string literals are skipped.
+ */
+final class JpqlUtils {
+  private static final Pattern JOIN_FETCH = Pattern.compile("(?i)\\bjoin\\s+fetch\\b");
+
+  private JpqlUtils() {
+  }
+
+  /**
+   * Derive a count query by stripping the ORDER BY clause and rewriting the select clause.
+   *
+   * @param qlString the original query
+   * @return the count query
+   * @throws IllegalArgumentException if the count query could not be derived
+   */
+  static String toCountQuery(String qlString) {
+    String ql = stripOrderBy(qlString);
+    if (indexOfKeyword(ql, "group by") >= 0)
+      throw new IllegalArgumentException("Could not derive count query from a GROUP BY query: " + qlString);
+    int from = indexOfFrom(ql, qlString);
+    String selection = selection(ql, from);
+    String countExpression = "count(*)";
+    if (selection != null && indexOfKeyword(selection, "distinct") == 0) {
+      String distinct = selection.substring("distinct".length()).trim();
+      if (indexOfTopLevel(distinct, ',') >= 0 || indexOfKeyword(distinct, "new") == 0)
+        throw new IllegalArgumentException("Could not derive count query from a multiple DISTINCT selection: " + qlString);
+      countExpression = "count(distinct " + distinct + ")";
+    }
+    return "select " + countExpression + " " + removeJoinFetch(ql.substring(from));
+  }
+
+  /**
+   * Derive an exists query by stripping the ORDER BY clause and rewriting the select clause to a constant.
+   * <p>
+   * The caller should limit the derived query to one result.
+   *
+   * @param qlString the original query
+   * @return the exists query
+   */
+  static String toExistsQuery(String qlString) {
+    String ql = stripOrderBy(qlString);
+    return "select 1 " + removeJoinFetch(ql.substring(indexOfFrom(ql, qlString)));
+  }
+
+  /**
+   * Strip the top level ORDER BY clause.
+   *
+   * @param qlString the original query
+   * @return the query without the ORDER BY clause
+   */
+  static String stripOrderBy(String qlString) {
+    int index = indexOfKeyword(qlString, "order by");
+    return (index < 0 ? qlString : qlString.substring(0, index)).trim();
+  }
+
+  private static String removeJoinFetch(String ql) {
+    return JOIN_FETCH.matcher(ql).replaceAll("join");
+  }
+
+  private static int indexOfFrom(String ql, String original) {
+    int from = indexOfKeyword(ql, "from");
+    if (from < 0) throw new IllegalArgumentException("Could not find the FROM clause in query: " + original);
+    return from;
+  }
+
+  private static String selection(String ql, int from) {
+    if (indexOfKeyword(ql, "select") != 0) return null;
+    return ql.substring("select".length(), from).trim();
+  }
+
+  /**
+   * Find the first top level occurrence of a char.
+   */
+  private static int indexOfTopLevel(String ql, char c) {
+    int depth = 0;
+    boolean quoted = false;
+    for (int i = 0; i < ql.length(); i++) {
+      char ch = ql.charAt(i);
+      if (ch == '\'') quoted = !quoted;
+      else if (quoted) continue;
+      else if (ch == '(') depth++;
+      else if (ch == ')') depth--;
+      else if (depth == 0 && ch == c) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Find the first top level occurrence of a keyword, words in the keyword could be separated by any whitespace.
+   */
+  static int indexOfKeyword(String ql, String keyword) {
+    String[] words = keyword.split(" ");
+    int depth = 0;
+    boolean quoted = false;
+    for (int i = 0; i < ql.length(); i++) {
+      char ch = ql.charAt(i);
+      if (ch == '\'') quoted = !quoted;
+      else if (quoted) continue;
+      else if (ch == '(') depth++;
+      else if (ch == ')') depth--;
+      else if (depth == 0 && (i == 0 || !isIdentifierPart(ql.charAt(i - 1))) && matchesAt(ql, i, words))
+        return i;
+    }
+    return -1;
+  }
+
+  private static boolean matchesAt(String ql, int start, String[] words) {
+    int i = start;
+    for (int w = 0; w < words.length; w++) {
+      if (w > 0) {
+        int wsStart = i;
+        while (i < ql.length() && Character.isWhitespace(ql.charAt(i))) i++;
+        if (i == wsStart) return false;
+      }
+      String word = words[w];
+      if (!ql.regionMatches(true, i, word, 0, word.length())) return false;
+      i += word.length();
+    }
+    return i == ql.length() || !isIdentifierPart(ql.charAt(i));
+  }
+
+  private static boolean isIdentifierPart(char ch) {
+    return Character.isJavaIdentifierPart(ch) || ch == '.' || ch == ':';
+  }
+}
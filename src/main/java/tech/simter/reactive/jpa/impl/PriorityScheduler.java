@@ -0,0 +1,237 @@
+package tech.simter.reactive.jpa.impl;
+
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import tech.simter.reactive.jpa.SchedulingClass;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A priority-aware {@link Scheduler} for blocking JPA method.
+ * <p>
+ * Each {@link SchedulingClass} has its own queue and concurrency share of a fixed worker pool.
+ * Workers dispatch the queued tasks by weighted fair queuing with {@link SchedulingClass#getWeight()},
+ * and a task waited longer than the starvation timeout is dispatched first.
+ * By default the {@link SchedulingClass#BACKGROUND} share is half of the workers and the {@link SchedulingClass#BULK}
+ * share is a quarter, so some workers are always kept for {@link SchedulingClass#INTERACTIVE} tasks.
+ * <p>
+ * {@link ReactiveJpaWrapperImpl} selects the class from the Reactor Context when its scheduler is this one,
+ * just define a spring bean with name 'reactiveJpaScheduler' to enable it.
+ */
+public class PriorityScheduler implements Scheduler {
+  private final Lock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final Map<SchedulingClass, ClassQueue> queues = new EnumMap<>(SchedulingClass.class);
+  private final Map<SchedulingClass, Scheduler> schedulers = new EnumMap<>(SchedulingClass.class);
+  private final Thread[] workers;
+  private final long starvationNanos;
+  private final LongSupplier nanoTime;
+  private double virtualTime;
+  private volatile boolean disposed;
+
+  /**
+   * Create a scheduler with default shares and 1 second starvation timeout.
+   *
+   * @param threads the worker count
+   */
+  public PriorityScheduler(int threads) {
+    this(threads, Duration.ofSeconds(1), defaultShares(threads));
+  }
+
+  /**
+   * Create a scheduler.
+   *
+   * @param threads           the worker count
+   * @param starvationTimeout a queued task waited longer than this is dispatched first
+   * @param shares            the max concurrent tasks of each class, absent class could use all workers
+   */
+  public PriorityScheduler(int threads, Duration starvationTimeout, Map<SchedulingClass, Integer> shares) {
+    this(threads, starvationTimeout, shares, System::nanoTime);
+  }
+
+  /**
+   * Create a scheduler with the specific clock of the starvation timeout.
+   */
+  PriorityScheduler(int threads, Duration starvationTimeout, Map<SchedulingClass, Integer> shares, LongSupplier nanoTime) {
+    if (threads <= 0) throw new IllegalArgumentException("threads must be positive: " + threads);
+    this.starvationNanos = starvationTimeout.toNanos();
+    this.nanoTime = nanoTime;
+    for (SchedulingClass c : SchedulingClass.values()) {
+      ClassQueue queue = new ClassQueue(c, Math.max(1, shares.getOrDefault(c, threads)));
+      queues.put(c, queue);
+      schedulers.put(c, Schedulers.fromExecutor(task -> enqueue(queue, task)));
+    }
+    this.workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(this::work, "reactive-jpa-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  private static Map<SchedulingClass, Integer> defaultShares(int threads) {
+    Map<SchedulingClass, Integer> shares = new EnumMap<>(SchedulingClass.class);
+    shares.put(SchedulingClass.INTERACTIVE, threads);
+    shares.put(SchedulingClass.BACKGROUND, Math.max(1, threads / 2));
+    shares.put(SchedulingClass.BULK, Math.max(1, threads / 4));
+    return shares;
+  }
+
+  /**
+   * Get the {@link Scheduler} view of the specific scheduling class.
+   *
+   * @param schedulingClass the scheduling class
+   * @return the {@link Scheduler} that queues its tasks to the class queue
+   */
+  public Scheduler forClass(SchedulingClass schedulingClass) {
+    return schedulers.get(schedulingClass);
+  }
+
+  /**
+   * Tasks scheduled directly are {@link SchedulingClass#INTERACTIVE}.
+   */
+  @Override
+  public Disposable schedule(Runnable task) {
+    return forClass(SchedulingClass.INTERACTIVE).schedule(task);
+  }
+
+  /**
+   * Workers created directly are {@link SchedulingClass#INTERACTIVE}.
+   */
+  @Override
+  public Worker createWorker() {
+    return forClass(SchedulingClass.INTERACTIVE).createWorker();
+  }
+
+  @Override
+  public boolean isDisposed() {
+    return disposed;
+  }
+
+  @Override
+  public void dispose() {
+    lock.lock();
+    try {
+      if (disposed) return;
+      disposed = true;
+      queues.values().forEach(q -> q.tasks.clear());
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (Thread worker : workers) worker.interrupt();
+  }
+
+  private void enqueue(ClassQueue queue, Runnable task) {
+    lock.lock();
+    try {
+      if (disposed) throw new RejectedExecutionException("Scheduler has been disposed");
+      // an idle class restarts from the current virtual time instead of using up its saved credit
+      if (queue.tasks.isEmpty()) queue.pass = Math.max(queue.pass, currentVirtualTime());
+      queue.tasks.add(new Task(task, nanoTime.getAsLong()));
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The minimal pass of the busy queues or the pass of the last dispatched task if all queues are empty,
+   * must be called with the lock held.
+   */
+  private double currentVirtualTime() {
+    double time = Double.MAX_VALUE;
+    for (ClassQueue queue : queues.values()) if (!queue.tasks.isEmpty()) time = Math.min(time, queue.pass);
+    return time == Double.MAX_VALUE ? virtualTime : time;
+  }
+
+  private void work() {
+    while (true) {
+      ClassQueue queue;
+      Task task;
+      lock.lock();
+      try {
+        while ((queue = next()) == null) {
+          if (disposed) return;
+          available.await();
+        }
+        task = queue.tasks.poll();
+        queue.running++;
+        virtualTime = queue.pass;
+        queue.pass += 1d / queue.schedulingClass.getWeight();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+
+      try {
+        task.runnable.run();
+      } catch (Throwable e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+      } finally {
+        lock.lock();
+        try {
+          queue.running--;
+          available.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Select the class queue to dispatch from, must be called with the lock held.
+   *
+   * @return the starving queue with the oldest head task or else the queue with the minimal pass,
+   * null if no queue could dispatch now
+   */
+  private ClassQueue next() {
+    long now = nanoTime.getAsLong();
+    ClassQueue starving = null;
+    ClassQueue fair = null;
+    for (ClassQueue queue : queues.values()) {
+      Task head = queue.tasks.peek();
+      if (head == null || queue.running >= queue.share) continue;
+      if (now - head.queuedAt >= starvationNanos
+        && (starving == null || head.queuedAt - starving.tasks.peek().queuedAt < 0)) starving = queue;
+      if (fair == null || queue.pass < fair.pass) fair = queue;
+    }
+    return starving != null ? starving : fair;
+  }
+
+  private static class ClassQueue {
+    private final SchedulingClass schedulingClass;
+    private final int share;
+    private final Queue<Task> tasks = new ArrayDeque<>();
+    private int running;
+    private double pass;
+
+    ClassQueue(SchedulingClass schedulingClass, int share) {
+      this.schedulingClass = schedulingClass;
+      this.share = share;
+    }
+  }
+
+  private static class Task {
+    private final Runnable runnable;
+    private final long queuedAt;
+
+    Task(Runnable runnable, long queuedAt) {
+      this.runnable = runnable;
+      this.queuedAt = queuedAt;
+    }
+  }
+}
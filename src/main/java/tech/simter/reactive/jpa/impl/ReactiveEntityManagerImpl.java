@@ -1,21 +1,42 @@
 package tech.simter.reactive.jpa.impl;
 
+import org.reactivestreams.Publisher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import tech.simter.reactive.jpa.FetchPlan;
+import tech.simter.reactive.jpa.Page;
 import tech.simter.reactive.jpa.ReactiveEntityManager;
 import tech.simter.reactive.jpa.ReactiveJpaWrapper;
 import tech.simter.reactive.jpa.ReactiveQuery;
 import tech.simter.reactive.jpa.ReactiveTypedQuery;
+import tech.simter.reactive.jpa.Specification;
 
+import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.Parameter;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.Query;
+import javax.persistence.Subgraph;
 import javax.persistence.TypedQuery;
-import java.util.HashMap;
-import java.util.Map;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A {@link ReactiveEntityManager} implementation for async run blocking JPA method.
@@ -24,8 +45,14 @@ import java.util.function.Function;
  */
 @Component
 public class ReactiveEntityManagerImpl implements ReactiveEntityManager {
+  private static final int BATCH_SIZE = 500;
+  private static final String LOAD_GRAPH = "javax.persistence.loadgraph";
+  private static final Pattern ORDER_BY = Pattern.compile(
+    "([A-Za-z_$][A-Za-z0-9_$]*(?:\\.[A-Za-z_$][A-Za-z0-9_$]*)*)(?:\\s+(?i)(asc|desc))?");
   private final EntityManagerFactory emf;
   private final ReactiveJpaWrapper wrapper;
+  private final Map<List<Object>, CachedCount> countCache = new ConcurrentHashMap<>();
+  private final Map<Class<?>, Boolean> associationClasses = new ConcurrentHashMap<>();
 
   @Autowired
   public ReactiveEntityManagerImpl(ReactiveJpaWrapper wrapper, EntityManagerFactory emf) {
@@ -55,13 +82,147 @@ public class ReactiveEntityManagerImpl implements ReactiveEntityManager {
   public <E> Mono<Void> remove(E... entities) {
     if (entities == null || entities.length == 0) return Mono.empty();
     else {
-      return wrapper.fromRunnable(() -> {
-        EntityManager em = createEntityManager();
-        em.getTransaction().begin();
-        for (E entity : entities) em.remove(em.merge(entity));
-        em.getTransaction().commit();
-        em.close();
-      });
+      return wrapper.fromRunnable(() -> doInTransaction(em -> {
+        List<E> list = Arrays.asList(entities);
+        Map<Class<?>, Map<Object, Object>> existing = findExisting(em, list);
+        for (E entity : list) {
+          Map<Object, Object> loaded = existing.get(entity.getClass());
+          // merge to the loaded managed copy without another select, it still checks the version
+          if (loaded == null || loaded.containsKey(emf.getPersistenceUnitUtil().getIdentifier(entity)))
+            em.remove(em.merge(entity));
+        }
+        return null;
+      }));
+    }
+  }
+
+  @SafeVarargs
+  public final <E> Flux<E> merge(E... entities) {
+    if (entities == null || entities.length == 0) return Flux.empty();
+    else {
+      List<E> list = Arrays.asList(entities);
+      return wrapper.fromIterable(() -> doInTransaction(em -> doMerge(em, list)));
+    }
+  }
+
+  @Override
+  public <E> Flux<E> mergeAll(Publisher<E> entities) {
+    return Flux.from(entities)
+      .buffer(BATCH_SIZE)
+      .concatMap(batch -> wrapper.<E>fromIterable(() -> doInTransaction(em -> doMerge(em, batch))));
+  }
+
+  @Override
+  public <E> Mono<Integer> removeById(Class<E> entityClass, Collection<?> ids) {
+    if (ids == null || ids.isEmpty()) return Mono.just(0);
+    return Mono.defer(() -> {
+      EntityType<E> type = emf.getMetamodel().entity(entityClass);
+      String idName = getBasicIdAttributeName(type);
+      if (idName == null) return Mono.error(new IllegalArgumentException(
+        "Could not remove by id for the entity without a single basic id attribute: " + entityClass.getName()));
+      String ql = "delete from " + type.getName() + " e where e." + idName + " in :ids";
+      List<?> list = new ArrayList<>(ids);
+      return wrapper.<Integer>fromCallable(() -> doInTransaction(em -> {
+        int count = 0;
+        for (int i = 0; i < list.size(); i += BATCH_SIZE)
+          count += em.createQuery(ql).setParameter("ids", list.subList(i, Math.min(i + BATCH_SIZE, list.size())))
+            .executeUpdate();
+        return count;
+      }));
+    });
+  }
+
+  /**
+   * Merge the entities with the existing state loaded by one query per entity class,
+   * instead of one select per detached entity by {@link EntityManager#merge(Object)}.
+   * The entities that not exist are persisted as new, the later entities with the same id are merged to it.
+   * But the new entities with associations are still merged, for the cascade MERGE semantics.
+   */
+  private <E> List<E> doMerge(EntityManager em, List<E> entities) {
+    Map<Class<?>, Map<Object, Object>> existing = findExisting(em, entities);
+    List<E> merged = new ArrayList<>(entities.size());
+    for (E entity : entities) {
+      Map<Object, Object> loaded = existing.get(entity.getClass());
+      Object id = emf.getPersistenceUnitUtil().getIdentifier(entity);
+      if (loaded == null || id == null || loaded.containsKey(id) || hasAssociation(entity.getClass()))
+        merged.add(em.merge(entity));
+      else {
+        em.persist(entity);
+        loaded.put(id, entity);
+        merged.add(entity);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Load the existing state of the entities into the persistence context by one query per entity class.
+   *
+   * @return the managed entities by id of each entity class, the class without a single basic id attribute is absent
+   */
+  private Map<Class<?>, Map<Object, Object>> findExisting(EntityManager em, Collection<?> entities) {
+    PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+    Map<Class<?>, Set<Object>> idsByClass = new LinkedHashMap<>();
+    for (Object entity : entities) {
+      Object id = util.getIdentifier(entity);
+      if (id != null) idsByClass.computeIfAbsent(entity.getClass(), k -> new LinkedHashSet<>()).add(id);
+    }
+
+    Map<Class<?>, Map<Object, Object>> existing = new HashMap<>();
+    idsByClass.forEach((entityClass, idSet) -> {
+      List<Object> ids = new ArrayList<>(idSet);
+      EntityType<?> type;
+      try {
+        type = emf.getMetamodel().entity(entityClass);
+      } catch (IllegalArgumentException e) { // such as a proxy class
+        return;
+      }
+      String idName = getBasicIdAttributeName(type);
+      if (idName == null) return;
+      String ql = "select e from " + type.getName() + " e where e." + idName + " in :ids";
+      Map<Object, Object> loaded = new HashMap<>();
+      for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+        List<?> result = em.createQuery(ql)
+          .setParameter("ids", ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())))
+          .getResultList();
+        for (Object e : result) loaded.put(util.getIdentifier(e), e);
+      }
+      existing.put(entityClass, loaded);
+    });
+    return existing;
+  }
+
+  /**
+   * @return true if the entity class has an association attribute, the cascade types are not in the metamodel
+   */
+  private boolean hasAssociation(Class<?> entityClass) {
+    return associationClasses.computeIfAbsent(entityClass, k ->
+      emf.getMetamodel().entity(k).getAttributes().stream().anyMatch(Attribute::isAssociation));
+  }
+
+  /**
+   * @return the name of the single basic id attribute or null if the entity has a composite or embedded id
+   */
+  private static String getBasicIdAttributeName(EntityType<?> type) {
+    if (!type.hasSingleIdAttribute() || type.getIdType().getPersistenceType() != Type.PersistenceType.BASIC)
+      return null;
+    for (SingularAttribute<?, ?> attribute : type.getSingularAttributes())
+      if (attribute.isId()) return attribute.getName();
+    return null;
+  }
+
+  private <R> R doInTransaction(Function<EntityManager, R> fn) {
+    EntityManager em = createEntityManager();
+    em.getTransaction().begin();
+    try {
+      R result = fn.apply(em);
+      em.getTransaction().commit();
+      return result;
+    } catch (Exception e) {
+      if (em.getTransaction().isActive()) em.getTransaction().rollback();
+      throw e;
+    } finally {
+      em.close();
     }
   }
 
@@ -77,6 +238,127 @@ public class ReactiveEntityManagerImpl implements ReactiveEntityManager {
     });
   }
 
+  @Override
+  public <T> Mono<T> find(Class<T> entityClass, Object primaryKey, FetchPlan fetchPlan) {
+    return wrapper.fromCallable(() -> doInTransaction(em -> {
+      Map<String, Object> hints = new HashMap<>();
+      hints.put(LOAD_GRAPH, createEntityGraph(em, entityClass, fetchPlan));
+      return em.find(entityClass, primaryKey, hints);
+    }));
+  }
+
+  /**
+   * Create the entity graph of the fetch plan, a named graph or an ad-hoc graph with sub graphs for nested paths.
+   */
+  private static EntityGraph<?> createEntityGraph(EntityManager em, Class<?> entityClass, FetchPlan fetchPlan) {
+    if (fetchPlan.getGraphName() != null) return em.getEntityGraph(fetchPlan.getGraphName());
+
+    EntityGraph<?> graph = em.createEntityGraph(entityClass);
+    Map<String, Subgraph<?>> subgraphs = new HashMap<>();
+    List<String> paths = fetchPlan.getAttributePaths();
+    for (String path : paths) {
+      // the attribute node of a path is added by the sub graph of the longer path
+      if (paths.stream().anyMatch(p -> p.startsWith(path + "."))) continue;
+      String[] segments = path.split("\\.");
+      if (segments.length == 1) {
+        graph.addAttributeNodes(path);
+        continue;
+      }
+      Subgraph<?> parent = subgraphs.computeIfAbsent(segments[0], k -> graph.addSubgraph(k));
+      String prefix = segments[0];
+      for (int i = 1; i < segments.length - 1; i++) {
+        Subgraph<?> current = parent;
+        String segment = segments[i];
+        prefix = prefix + "." + segment;
+        parent = subgraphs.computeIfAbsent(prefix, k -> current.addSubgraph(segment));
+      }
+      parent.addAttributeNodes(segments[segments.length - 1]);
+    }
+    return graph;
+  }
+
+  /**
+   * Fetch the attribute paths of the entities level by level, one extra query per attribute of each level keyed by
+   * the owner ids of the previous level, the fetched associations are set to the same managed instances.
+   * <p>
+   * Only one association is join fetched per query, so sibling collections never make a cartesian product.
+   */
+  private void batchFetch(EntityManager em, Class<?> entityClass, Collection<?> entities, List<String> paths) {
+    if (entities.isEmpty() || paths.isEmpty()) return;
+    EntityType<?> type = emf.getMetamodel().entity(entityClass);
+    String idName = getBasicIdAttributeName(type);
+    if (idName == null) throw new IllegalArgumentException(
+      "Could not batch fetch the entity without a single basic id attribute: " + entityClass.getName());
+    PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+    Set<Object> idSet = new LinkedHashSet<>();
+    for (Object entity : entities) idSet.add(util.getIdentifier(entity));
+    List<Object> ids = new ArrayList<>(idSet);
+
+    // group the remaining paths by the attribute of this level
+    Map<String, List<String>> childPaths = new LinkedHashMap<>();
+    for (String path : paths) {
+      int dot = path.indexOf('.');
+      List<String> children = childPaths.computeIfAbsent(dot < 0 ? path : path.substring(0, dot), k -> new ArrayList<>());
+      if (dot >= 0) children.add(path.substring(dot + 1));
+    }
+
+    for (Map.Entry<String, List<String>> entry : childPaths.entrySet()) {
+      Attribute<?, ?> attribute = type.getAttribute(entry.getKey());
+      String ql = "select distinct e from " + type.getName() + " e left join fetch e." + entry.getKey()
+        + " where e." + idName + " in :ids";
+      List<Object> fetched = new ArrayList<>();
+      for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+        List<?> owners = em.createQuery(ql).setParameter("ids", ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())))
+          .getResultList();
+        if (!entry.getValue().isEmpty()) for (Object owner : owners) collectValues(owner, attribute, fetched);
+      }
+
+      Class<?> targetClass = attribute instanceof PluralAttribute
+        ? ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType() : attribute.getJavaType();
+      batchFetch(em, targetClass, fetched, entry.getValue());
+    }
+  }
+
+  /**
+   * Add the non-null value of the attribute to the values, the elements for a collection or map attribute.
+   * <p>
+   * The getter is preferred to the field, so the value of an initialized proxy is read from its target.
+   */
+  private static void collectValues(Object owner, Attribute<?, ?> attribute, List<Object> values) {
+    Object value;
+    try {
+      Member member = attribute.getJavaMember();
+      if (member instanceof Field) {
+        String name = attribute.getName();
+        String getter = "get" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        Method method = null;
+        for (Class<?> c = member.getDeclaringClass(); c != null && method == null; c = c.getSuperclass()) {
+          try {
+            method = c.getDeclaredMethod(getter);
+          } catch (NoSuchMethodException e) {
+            // try the super class
+          }
+        }
+        if (method != null) member = method;
+      }
+      if (member instanceof Method) {
+        ((Method) member).setAccessible(true);
+        value = ((Method) member).invoke(owner);
+      } else {
+        ((Field) member).setAccessible(true);
+        value = ((Field) member).get(owner);
+      }
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not read the attribute " + attribute.getName() + " of " + owner, e);
+    }
+
+    if (value instanceof Collection) {
+      for (Object v : (Collection<?>) value) if (v != null) values.add(v);
+    } else if (value instanceof Map) {
+      for (Object v : ((Map<?, ?>) value).values()) if (v != null) values.add(v);
+    } else if (value != null) values.add(value);
+  }
+
   @Override
   public <T> ReactiveTypedQuery<T> createQuery(String qlString, Class<T> resultClass) {
     return new ReactiveTypedQueryImpl<>(qlString, resultClass);
@@ -87,12 +369,32 @@ public class ReactiveEntityManagerImpl implements ReactiveEntityManager {
     return new ReactiveQueryImpl(qlString);
   }
 
+  @Override
+  public <T> ReactiveTypedQuery<T> createQuery(Class<T> entityClass, Specification<T> specification, String... orderBy) {
+    Map<String, Object> params = new HashMap<>();
+    StringBuilder ql = new StringBuilder("select e from ")
+      .append(emf.getMetamodel().entity(entityClass).getName()).append(" e");
+    String where = specification.toJpql("e", params);
+    if (!where.isEmpty()) ql.append(" where ").append(where);
+    for (int i = 0; i < orderBy.length; i++) {
+      Matcher matcher = ORDER_BY.matcher(orderBy[i].trim());
+      if (!matcher.matches()) throw new IllegalArgumentException("Invalid order by: " + orderBy[i]);
+      ql.append(i == 0 ? " order by e." : ", e.").append(matcher.group(1));
+      if (matcher.group(2) != null) ql.append(' ').append(matcher.group(2).toLowerCase());
+    }
+
+    ReactiveTypedQuery<T> query = new ReactiveTypedQueryImpl<>(ql.toString(), entityClass);
+    params.forEach(query::setParameter);
+    return query;
+  }
+
   private class ReactiveTypedQueryImpl<T> implements ReactiveTypedQuery<T> {
     private final Map<String, Object> params = new HashMap<>();
     private String qlString;
     private Class<T> resultClass;
     private int startPosition;
     private int maxResult;
+    private FetchPlan fetchPlan;
 
     ReactiveTypedQueryImpl(String qlString, Class<T> resultClass) {
       this.qlString = qlString;
@@ -117,6 +419,12 @@ public class ReactiveEntityManagerImpl implements ReactiveEntityManager {
       return this;
     }
 
+    @Override
+    public ReactiveTypedQuery<T> setFetchPlan(FetchPlan fetchPlan) {
+      this.fetchPlan = fetchPlan;
+      return this;
+    }
+
     @Override
     public Mono<T> getSingleResult() {
       return wrapper.fromCallable(() -> doInTransaction(TypedQuery::getSingleResult));
@@ -124,27 +432,143 @@ public class ReactiveEntityManagerImpl implements ReactiveEntityManager {
 
     @Override
     public Flux<T> getResultList() {
-      return wrapper.fromIterable(() -> doInTransaction(TypedQuery::getResultList));
+      if (fetchPlan == null || !fetchPlan.isBatch())
+        return wrapper.fromIterable(() -> doInTransaction(TypedQuery::getResultList));
+      else return wrapper.fromIterable(() -> doInTransaction(false, (em, query) -> {
+        List<T> list = query.getResultList();
+        batchFetch(em, resultClass, list, fetchPlan.getAttributePaths());
+        return list;
+      }));
+    }
+
+    @Override
+    public Mono<Long> count() {
+      return Mono.defer(() -> {
+        String countQl = JpqlUtils.toCountQuery(qlString);
+        return wrapper.fromCallable(() -> doInTransaction(countQl, query -> ((Number) query.getSingleResult()).longValue()));
+      });
+    }
+
+    @Override
+    public Mono<Boolean> exists() {
+      return Mono.defer(() -> {
+        String existsQl = JpqlUtils.toExistsQuery(qlString);
+        return wrapper.fromCallable(() -> doInTransaction(existsQl, query -> !query.setMaxResults(1).getResultList().isEmpty()));
+      });
+    }
+
+    @Override
+    public Mono<Page<T>> getPage() {
+      return getPage(Duration.ZERO);
+    }
+
+    @Override
+    public Mono<Page<T>> getPage(Duration countCacheTtl) {
+      // snapshot the settings, so reusing this query before the page completes not change it
+      ReactiveTypedQueryImpl<T> query = copy();
+      Mono<Long> total;
+      if (countCacheTtl.isNegative() || countCacheTtl.isZero()) total = query.count();
+      else {
+        List<Object> key = countCacheKey(qlString, query.params);
+        total = Mono.defer(() -> {
+          Long cached = getCachedCount(key);
+          return cached != null ? Mono.just(cached) : query.count().doOnNext(c -> cacheCount(key, c, countCacheTtl));
+        });
+      }
+      return Mono.zip(query.getResultList().collectList(), total)
+        .map(t -> new Page<>(t.getT1(), query.startPosition, query.maxResult, t.getT2()));
+    }
+
+    private ReactiveTypedQueryImpl<T> copy() {
+      ReactiveTypedQueryImpl<T> query = new ReactiveTypedQueryImpl<>(qlString, resultClass);
+      query.params.putAll(params);
+      query.startPosition = startPosition;
+      query.maxResult = maxResult;
+      query.fetchPlan = fetchPlan;
+      return query;
     }
 
     private <R> R doInTransaction(Function<TypedQuery<T>, R> fn) {
-      EntityManager em = createEntityManager();
-      em.getTransaction().begin();
-      try {
+      return doInTransaction(true, (em, query) -> fn.apply(query));
+    }
+
+    /**
+     * @param loadGraph whether to apply the fetch plan as a load graph, false if the caller batch fetches it
+     */
+    private <R> R doInTransaction(boolean loadGraph, BiFunction<EntityManager, TypedQuery<T>, R> fn) {
+      return ReactiveEntityManagerImpl.this.doInTransaction(em -> {
         TypedQuery<T> query = em.createQuery(qlString, resultClass);
         if (!params.isEmpty()) params.forEach(query::setParameter);
         if (startPosition > 0) query.setFirstResult(startPosition);
         if (maxResult > 0) query.setMaxResults(maxResult);
+        if (loadGraph && fetchPlan != null)
+          query.setHint(LOAD_GRAPH, createEntityGraph(em, resultClass, fetchPlan));
+        return fn.apply(em, query);
+      });
+    }
 
-        R result = fn.apply(query);
+    /**
+     * Execute a query derived from this query, the first result and max results settings are ignored
+     * and the parameters that are not in the derived query are skipped.
+     */
+    private <R> R doInTransaction(String derivedQlString, Function<Query, R> fn) {
+      return ReactiveEntityManagerImpl.this.doInTransaction(em -> {
+        Query query = em.createQuery(derivedQlString);
+        if (!params.isEmpty()) {
+          Set<String> names = new HashSet<>();
+          for (Parameter<?> p : query.getParameters()) names.add(p.getName());
+          params.forEach((name, value) -> {
+            if (names.contains(name)) query.setParameter(name, value);
+          });
+        }
+        return fn.apply(query);
+      });
+    }
+  }
 
-        em.getTransaction().commit();
-        em.close();
-        return result;
-      } catch (Exception e) {
-        em.getTransaction().rollback();
-        throw e;
-      }
+  /**
+   * The equality-based key of the count cache, the array parameters are compared by their elements.
+   */
+  private static List<Object> countCacheKey(String qlString, Map<String, Object> params) {
+    Map<String, Object> values = new HashMap<>(params.size());
+    params.forEach((name, value) -> {
+      if (value != null && value.getClass().isArray()) {
+        List<Object> elements = new ArrayList<>();
+        for (int i = 0; i < Array.getLength(value); i++)
+          elements.add(Array.get(value, i));
+        values.put(name, elements);
+      } else values.put(name, value);
+    });
+    return Arrays.asList(qlString, values);
+  }
+
+  private Long getCachedCount(List<Object> key) {
+    CachedCount cached = countCache.get(key);
+    if (cached == null) return null;
+    if (cached.isExpired(System.nanoTime())) {
+      countCache.remove(key, cached);
+      return null;
+    }
+    return cached.total;
+  }
+
+  private void cacheCount(List<Object> key, long total, Duration ttl) {
+    long now = System.nanoTime();
+    countCache.values().removeIf(c -> c.isExpired(now));
+    countCache.put(key, new CachedCount(total, now + ttl.toNanos()));
+  }
+
+  private static class CachedCount {
+    private final long total;
+    private final long expireAt;
+
+    CachedCount(long total, long expireAt) {
+      this.total = total;
+      this.expireAt = expireAt;
+    }
+
+    boolean isExpired(long now) {
+      return now - expireAt >= 0;
     }
   }
 
@@ -7,7 +7,9 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
+import reactor.util.context.ContextView;
 import tech.simter.reactive.jpa.ReactiveJpaWrapper;
+import tech.simter.reactive.jpa.SchedulingClass;
 
 import java.util.concurrent.Callable;
 import java.util.function.Supplier;
@@ -18,6 +20,9 @@ import java.util.stream.Stream;
  * <p>
  * By default, all blocking JPA method run on {@link Schedulers#boundedElastic()}.
  * This {@link Scheduler} could be replaced by a spring bean with name 'reactiveJpaScheduler'.
+ * <p>
+ * If the {@link Scheduler} is a {@link PriorityScheduler}, the blocking JPA method run on the scheduling class
+ * selected by the {@link SchedulingClass} in the Reactor Context.
  *
  * @author RJ
  */
@@ -36,23 +41,30 @@ public class ReactiveJpaWrapperImpl implements ReactiveJpaWrapper {
 
   private Scheduler scheduler;
 
+  private Scheduler scheduler(ContextView context) {
+    if (scheduler instanceof PriorityScheduler)
+      return ((PriorityScheduler) scheduler).forClass(SchedulingClass.from(context));
+    else return scheduler;
+  }
+
   @Override
   public <T> Mono<T> fromRunnable(Runnable runnable) {
-    return Mono.<T>fromRunnable(runnable).subscribeOn(scheduler);
+    return Mono.deferContextual(context -> Mono.<T>fromRunnable(runnable).subscribeOn(scheduler(context)));
   }
 
   @Override
   public <T> Mono<T> fromCallable(Callable<? extends T> callable) {
-    return Mono.<T>fromCallable(callable).subscribeOn(scheduler);
+    return Mono.deferContextual(context -> Mono.<T>fromCallable(callable).subscribeOn(scheduler(context)));
   }
 
   @Override
   public <T> Flux<T> fromIterable(Supplier<Iterable<? extends T>> supplier) {
-    return Flux.defer(() -> Flux.<T>fromIterable(supplier.get()).subscribeOn(scheduler));
+    return Flux.deferContextual(context -> Flux.defer(() -> Flux.<T>fromIterable(supplier.get()))
+      .subscribeOn(scheduler(context)));
   }
 
   @Override
   public <T> Flux<T> fromStream(Supplier<Stream<? extends T>> supplier) {
-    return Flux.fromStream(supplier).subscribeOn(scheduler);
+    return Flux.deferContextual(context -> Flux.<T>fromStream(supplier).subscribeOn(scheduler(context)));
   }
 }
\ No newline at end of file
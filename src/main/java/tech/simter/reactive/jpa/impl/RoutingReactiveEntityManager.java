@@ -0,0 +1,509 @@
+package tech.simter.reactive.jpa.impl;
+
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import tech.simter.reactive.jpa.*;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.NonUniqueResultException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A {@link ReactiveEntityManager} routes the operations to multiple {@link EntityManagerFactory}.
+ * <p>
+ * Each {@link Shard} has a primary {@link Target} and some read replica {@link Target}s.
+ * The read-only operations ({@code find}, {@code getSingleResult}, {@code getResultList}, {@code count},
+ * {@code exists} and {@code getPage}) run on the least busy replica, and fall back to the primary
+ * if all replicas are saturated or the replica fails. The other operations always run on the primary,
+ * so a read just after a write could see the stale replica data.
+ * <p>
+ * Each {@link Target} has its own scheduler and max concurrent operations, an operation is rejected
+ * with {@link RejectedExecutionException} if no target could admit it.
+ * <p>
+ * The operations of this instance run on the only shard, with multiple shards they throw
+ * {@link IllegalStateException} and {@link #shard(Object)} must be used to route by shard key.
+ */
+public class RoutingReactiveEntityManager implements ReactiveEntityManager {
+  private final List<ShardRouter> shards = new ArrayList<>();
+  private final ToIntFunction<Object> shardResolver;
+
+  /**
+   * Create a routing manager with the shard of a key resolved by {@code floorMod(key.hashCode(), shards.size())}.
+   *
+   * @param shards the shards
+   */
+  public RoutingReactiveEntityManager(List<Shard> shards) {
+    this(shards, key -> Math.floorMod(key.hashCode(), shards.size()));
+  }
+
+  /**
+   * Create a routing manager.
+   *
+   * @param shards        the shards
+   * @param shardResolver resolve the shard index of a shard key
+   */
+  public RoutingReactiveEntityManager(List<Shard> shards, ToIntFunction<Object> shardResolver) {
+    if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+    for (Shard shard : shards) this.shards.add(new ShardRouter(shard));
+    this.shardResolver = shardResolver;
+  }
+
+  /**
+   * Get the {@link ReactiveEntityManager} of the shard that the key belongs to.
+   *
+   * @param shardKey the shard key
+   * @return the {@link ReactiveEntityManager} routes to the shard targets
+   * @throws IndexOutOfBoundsException if the resolved shard index is out of range
+   */
+  public ReactiveEntityManager shard(Object shardKey) {
+    int index = shardResolver.applyAsInt(shardKey);
+    if (index < 0 || index >= shards.size())
+      throw new IndexOutOfBoundsException("Shard index " + index + " of key " + shardKey + " is out of range");
+    return shards.get(index);
+  }
+
+  /**
+   * @throws IllegalStateException if there are multiple shards, the shard must be selected by a shard key
+   */
+  private ShardRouter defaultShard() {
+    if (shards.size() > 1) throw new IllegalStateException(
+      "Could not choose one of the " + shards.size() + " shards, use shard(shardKey) instead");
+    return shards.get(0);
+  }
+
+  @SafeVarargs
+  public final <E> Mono<Void> persist(E... entities) {
+    return defaultShard().persist(entities);
+  }
+
+  @SafeVarargs
+  public final <E> Mono<Void> remove(E... entities) {
+    return defaultShard().remove(entities);
+  }
+
+  @SafeVarargs
+  public final <E> Flux<E> merge(E... entities) {
+    return defaultShard().merge(entities);
+  }
+
+  @Override
+  public <E> Flux<E> mergeAll(Publisher<E> entities) {
+    return defaultShard().mergeAll(entities);
+  }
+
+  @Override
+  public <E> Mono<Integer> removeById(Class<E> entityClass, Collection<?> ids) {
+    return defaultShard().removeById(entityClass, ids);
+  }
+
+  @Override
+  public <T> Mono<T> find(Class<T> entityClass, Object primaryKey) {
+    return defaultShard().find(entityClass, primaryKey);
+  }
+
+  @Override
+  public <T> Mono<T> find(Class<T> entityClass, Object primaryKey, FetchPlan fetchPlan) {
+    return defaultShard().find(entityClass, primaryKey, fetchPlan);
+  }
+
+  @Override
+  public <T> ReactiveTypedQuery<T> createQuery(String qlString, Class<T> resultClass) {
+    return defaultShard().createQuery(qlString, resultClass);
+  }
+
+  @Override
+  public ReactiveQuery createQuery(String qlString) {
+    return defaultShard().createQuery(qlString);
+  }
+
+  @Override
+  public <T> ReactiveTypedQuery<T> createQuery(Class<T> entityClass, Specification<T> specification, String... orderBy) {
+    return defaultShard().createQuery(entityClass, specification, orderBy);
+  }
+
+  /**
+   * A routing target with its own {@link ReactiveEntityManager} and admission limit.
+   */
+  public static final class Target {
+    private final String name;
+    private final ReactiveEntityManager entityManager;
+    private final int maxConcurrency;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * @param name           the target name
+     * @param entityManager  the {@link ReactiveEntityManager} of the target
+     * @param maxConcurrency the max concurrent operations admitted
+     */
+    public Target(String name, ReactiveEntityManager entityManager, int maxConcurrency) {
+      if (maxConcurrency <= 0) throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+      this.name = name;
+      this.entityManager = entityManager;
+      this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Create a target that run the blocking JPA method of the {@link EntityManagerFactory} on its own {@link Scheduler}.
+     */
+    public static Target of(String name, EntityManagerFactory emf, Scheduler scheduler, int maxConcurrency) {
+      return new Target(name, new ReactiveEntityManagerImpl(new ReactiveJpaWrapperImpl(scheduler), emf), maxConcurrency);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the current concurrent operations
+     */
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    private boolean tryAcquire() {
+      int current;
+      do {
+        current = inFlight.get();
+        if (current >= maxConcurrency) return false;
+      } while (!inFlight.compareAndSet(current, current + 1));
+      return true;
+    }
+
+    /**
+     * Run the operation that admitted by {@link #tryAcquire()}.
+     */
+    private <R> Mono<R> run(Function<ReactiveEntityManager, Mono<R>> operation) {
+      return Mono.defer(() -> operation.apply(entityManager)).doFinally(s -> inFlight.decrementAndGet());
+    }
+
+    /**
+     * Run the operation that admitted by {@link #tryAcquire()}.
+     */
+    private <R> Flux<R> runMany(Function<ReactiveEntityManager, Flux<R>> operation) {
+      return Flux.defer(() -> operation.apply(entityManager)).doFinally(s -> inFlight.decrementAndGet());
+    }
+
+    private RejectedExecutionException rejected() {
+      return new RejectedExecutionException("Too many concurrent operations on target '" + name + "'");
+    }
+
+    @Override
+    public String toString() {
+      return "Target{name=" + name + ", inFlight=" + inFlight.get() + ", maxConcurrency=" + maxConcurrency + "}";
+    }
+  }
+
+  /**
+   * A shard with a primary target and some read replica targets.
+   */
+  public static final class Shard {
+    private final Target primary;
+    private final List<Target> replicas;
+
+    public Shard(Target primary) {
+      this(primary, Collections.emptyList());
+    }
+
+    public Shard(Target primary, List<Target> replicas) {
+      this.primary = primary;
+      this.replicas = replicas;
+    }
+  }
+
+  private static final class ShardRouter implements ReactiveEntityManager {
+    private final Target primary;
+    private final Target[] replicas;
+    private final AtomicInteger next = new AtomicInteger();
+
+    ShardRouter(Shard shard) {
+      this.primary = shard.primary;
+      this.replicas = shard.replicas.toArray(new Target[0]);
+    }
+
+    /**
+     * Acquire the least busy replica, start from a rotating index to spread the ties.
+     *
+     * @return the acquired replica or null if all replicas are saturated
+     */
+    private Target acquireReplica() {
+      int n = replicas.length;
+      if (n == 0) return null;
+      int start = Math.floorMod(next.getAndIncrement(), n);
+      Target best = null;
+      for (int i = 0; i < n; i++) {
+        Target target = replicas[(start + i) % n];
+        if (best == null || target.getInFlight() < best.getInFlight()) best = target;
+      }
+      if (best.tryAcquire()) return best;
+      for (int i = 0; i < n; i++) {
+        Target target = replicas[(start + i) % n];
+        if (target.tryAcquire()) return target;
+      }
+      return null;
+    }
+
+    /**
+     * The replica failure that the operation could retry on the primary, not the result or usage errors.
+     */
+    private static boolean isFallback(Throwable e) {
+      return !(e instanceof NoResultException || e instanceof NonUniqueResultException
+        || e instanceof IllegalArgumentException);
+    }
+
+    private <R> Mono<R> write(Function<ReactiveEntityManager, Mono<R>> operation) {
+      return Mono.defer(() -> primary.tryAcquire() ? primary.run(operation) : Mono.error(primary.rejected()));
+    }
+
+    private <R> Flux<R> writeMany(Function<ReactiveEntityManager, Flux<R>> operation) {
+      return Flux.defer(() -> primary.tryAcquire() ? primary.runMany(operation) : Flux.error(primary.rejected()));
+    }
+
+    private <R> Mono<R> read(Function<ReactiveEntityManager, Mono<R>> operation) {
+      return Mono.defer(() -> {
+        Target replica = acquireReplica();
+        if (replica == null) return write(operation);
+        return replica.run(operation).onErrorResume(ShardRouter::isFallback, e -> write(operation));
+      });
+    }
+
+    private <R> Flux<R> readMany(Function<ReactiveEntityManager, Flux<R>> operation) {
+      return Flux.defer(() -> {
+        Target replica = acquireReplica();
+        if (replica == null) return writeMany(operation);
+        // not fall back after some data emitted to avoid duplicates
+        AtomicBoolean emitted = new AtomicBoolean();
+        return replica.runMany(operation)
+          .doOnNext(r -> emitted.set(true))
+          .onErrorResume(e -> !emitted.get() && isFallback(e), e -> writeMany(operation));
+      });
+    }
+
+    @SafeVarargs
+    public final <E> Mono<Void> persist(E... entities) {
+      return write(rem -> rem.persist(entities));
+    }
+
+    @SafeVarargs
+    public final <E> Mono<Void> remove(E... entities) {
+      return write(rem -> rem.remove(entities));
+    }
+
+    @SafeVarargs
+    public final <E> Flux<E> merge(E... entities) {
+      return writeMany(rem -> rem.merge(entities));
+    }
+
+    @Override
+    public <E> Flux<E> mergeAll(Publisher<E> entities) {
+      return writeMany(rem -> rem.mergeAll(entities));
+    }
+
+    @Override
+    public <E> Mono<Integer> removeById(Class<E> entityClass, Collection<?> ids) {
+      return write(rem -> rem.removeById(entityClass, ids));
+    }
+
+    @Override
+    public <T> Mono<T> find(Class<T> entityClass, Object primaryKey) {
+      return read(rem -> rem.find(entityClass, primaryKey));
+    }
+
+    @Override
+    public <T> Mono<T> find(Class<T> entityClass, Object primaryKey, FetchPlan fetchPlan) {
+      return read(rem -> rem.find(entityClass, primaryKey, fetchPlan));
+    }
+
+    @Override
+    public <T> ReactiveTypedQuery<T> createQuery(String qlString, Class<T> resultClass) {
+      return new RoutingTypedQuery<>(this, rem -> rem.createQuery(qlString, resultClass));
+    }
+
+    @Override
+    public ReactiveQuery createQuery(String qlString) {
+      return new RoutingQuery(this, rem -> rem.createQuery(qlString));
+    }
+
+    @Override
+    public <T> ReactiveTypedQuery<T> createQuery(Class<T> entityClass, Specification<T> specification, String... orderBy) {
+      return new RoutingTypedQuery<>(this, rem -> rem.createQuery(entityClass, specification, orderBy));
+    }
+  }
+
+  /**
+   * Keep the query settings and create the query on the target selected when executing.
+   */
+  private static final class RoutingTypedQuery<T> implements ReactiveTypedQuery<T> {
+    private final Map<String, Object> params = new LinkedHashMap<>();
+    private final ShardRouter router;
+    private final Function<ReactiveEntityManager, ReactiveTypedQuery<T>> factory;
+    private int startPosition;
+    private int maxResult;
+    private FetchPlan fetchPlan;
+
+    RoutingTypedQuery(ShardRouter router, Function<ReactiveEntityManager, ReactiveTypedQuery<T>> factory) {
+      this.router = router;
+      this.factory = factory;
+    }
+
+    private ReactiveTypedQuery<T> create(ReactiveEntityManager rem) {
+      ReactiveTypedQuery<T> query = factory.apply(rem);
+      params.forEach(query::setParameter);
+      if (startPosition > 0) query.setFirstResult(startPosition);
+      if (maxResult > 0) query.setMaxResults(maxResult);
+      if (fetchPlan != null) query.setFetchPlan(fetchPlan);
+      return query;
+    }
+
+    /**
+     * Snapshot the settings, so reusing this query before the execution subscribed or completed not change it.
+     */
+    private RoutingTypedQuery<T> copy() {
+      RoutingTypedQuery<T> query = new RoutingTypedQuery<>(router, factory);
+      query.params.putAll(params);
+      query.startPosition = startPosition;
+      query.maxResult = maxResult;
+      query.fetchPlan = fetchPlan;
+      return query;
+    }
+
+    @Override
+    public ReactiveTypedQuery<T> setParameter(String name, Object value) {
+      params.put(name, value);
+      return this;
+    }
+
+    @Override
+    public ReactiveTypedQuery<T> setFirstResult(int startPosition) {
+      this.startPosition = startPosition;
+      return this;
+    }
+
+    @Override
+    public ReactiveTypedQuery<T> setMaxResults(int maxResult) {
+      this.maxResult = maxResult;
+      return this;
+    }
+
+    @Override
+    public ReactiveTypedQuery<T> setFetchPlan(FetchPlan fetchPlan) {
+      this.fetchPlan = fetchPlan;
+      return this;
+    }
+
+    @Override
+    public Mono<T> getSingleResult() {
+      RoutingTypedQuery<T> query = copy();
+      return router.read(rem -> query.create(rem).getSingleResult());
+    }
+
+    @Override
+    public Flux<T> getResultList() {
+      RoutingTypedQuery<T> query = copy();
+      return router.readMany(rem -> query.create(rem).getResultList());
+    }
+
+    @Override
+    public Mono<Long> count() {
+      RoutingTypedQuery<T> query = copy();
+      return router.read(rem -> query.create(rem).count());
+    }
+
+    @Override
+    public Mono<Boolean> exists() {
+      RoutingTypedQuery<T> query = copy();
+      return router.read(rem -> query.create(rem).exists());
+    }
+
+    @Override
+    public Mono<Page<T>> getPage() {
+      RoutingTypedQuery<T> query = copy();
+      return router.read(rem -> query.create(rem).getPage());
+    }
+
+    @Override
+    public Mono<Page<T>> getPage(Duration countCacheTtl) {
+      RoutingTypedQuery<T> query = copy();
+      return router.read(rem -> query.create(rem).getPage(countCacheTtl));
+    }
+  }
+
+  /**
+   * Keep the query settings and create the query on the target selected when executing.
+   */
+  private static final class RoutingQuery implements ReactiveQuery {
+    private final Map<String, Object> params = new LinkedHashMap<>();
+    private final ShardRouter router;
+    private final Function<ReactiveEntityManager, ReactiveQuery> factory;
+    private int startPosition;
+    private int maxResult;
+
+    RoutingQuery(ShardRouter router, Function<ReactiveEntityManager, ReactiveQuery> factory) {
+      this.router = router;
+      this.factory = factory;
+    }
+
+    private ReactiveQuery create(ReactiveEntityManager rem) {
+      ReactiveQuery query = factory.apply(rem);
+      params.forEach(query::setParameter);
+      if (startPosition > 0) query.setFirstResult(startPosition);
+      if (maxResult > 0) query.setMaxResults(maxResult);
+      return query;
+    }
+
+    /**
+     * Snapshot the settings, so reusing this query before the execution subscribed or completed not change it.
+     */
+    private RoutingQuery copy() {
+      RoutingQuery query = new RoutingQuery(router, factory);
+      query.params.putAll(params);
+      query.startPosition = startPosition;
+      query.maxResult = maxResult;
+      return query;
+    }
+
+    @Override
+    public ReactiveQuery setParameter(String name, Object value) {
+      params.put(name, value);
+      return this;
+    }
+
+    @Override
+    public ReactiveQuery setFirstResult(int startPosition) {
+      this.startPosition = startPosition;
+      return this;
+    }
+
+    @Override
+    public ReactiveQuery setMaxResults(int maxResult) {
+      this.maxResult = maxResult;
+      return this;
+    }
+
+    @Override
+    public <T> Mono<T> getSingleResult() {
+      RoutingQuery query = copy();
+      return router.read(rem -> query.create(rem).<T>getSingleResult());
+    }
+
+    @Override
+    public <T> Flux<T> getResultList() {
+      RoutingQuery query = copy();
+      return router.readMany(rem -> query.create(rem).<T>getResultList());
+    }
+
+    @Override
+    public Mono<Integer> executeUpdate() {
+      RoutingQuery query = copy();
+      return router.write(rem -> query.create(rem).executeUpdate());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package tech.simter.reactive.jpa
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import tech.simter.reactive.jpa.Specification.*
+
+class SpecificationTest {
+  private fun render(specification: Specification<Any>): Pair<String, Map<String, Any?>> {
+    val params = mutableMapOf<String, Any?>()
+    return specification.toJpql("e", params) to params
+  }
+
+  @Test
+  fun `equivalent shapes render to the same jpql`() {
+    val (jpql1, params1) = render(eq<Any>("title", "a").and(gt("price", 3)).and(like("title", "%x%")))
+    val (jpql2, params2) = render(allOf(like("title", "%y%"), allOf(eq("title", "b"), gt("price", 9))))
+
+    assertEquals("e.price > :p0 and e.title = :p1 and e.title like :p2", jpql1)
+    assertEquals(jpql1, jpql2)
+    assertEquals(mapOf("p0" to 3, "p1" to "a", "p2" to "%x%"), params1)
+    assertEquals(mapOf("p0" to 9, "p1" to "b", "p2" to "%y%"), params2)
+  }
+
+  @Test
+  fun `nested and duplicate conditions`() {
+    val (jpql, params) = render(
+      anyOf(eq<Any>("a", 1), eq("a", 1), isNull("b"))
+        .and(not(not(`in`("c", listOf(1, 2)))))
+        .and(all())
+    )
+    assertEquals("(e.a = :p0 or e.b is null) and e.c in :p1", jpql)
+    assertEquals(mapOf("p0" to 1, "p1" to listOf(1, 2)), params)
+  }
+
+  @Test
+  fun `match all and match nothing`() {
+    assertEquals("", render(all<Any>().and(eq<Any>("a", 1).or(all()))).first)
+    assertEquals("1 = 0", render(eq<Any>("a", 1).and(`in`("b", listOf<Any>()))).first)
+    assertEquals("e.a is null", render(eq("a", null)).first)
+  }
+
+  @Test
+  fun `custom condition enclosed when combined`() {
+    val custom = Specification<Any> { alias, jpql, _ -> jpql.append("$alias.x = 1 or $alias.y = 2") }
+    assertEquals("(e.x = 1 or e.y = 2) and e.z = :p0", render(custom.and(eq("z", 3))).first)
+    assertEquals("(e.x = 1 or e.y = 2) or not (e.z = :p0)", render(custom.or(not(eq("z", 3)))).first)
+    assertEquals("not (e.x = 1 or e.y = 2)", render(custom.negate()).first)
+  }
+
+  @Test
+  fun `not custom match all`() {
+    val custom = Specification<Any> { _, _, _ -> }
+    assertEquals("1 = 0", render(not(custom)).first)
+    assertEquals("1 = 0 and e.z = :p0", render(not(custom).and(eq("z", 3))).first)
+  }
+
+  @Test
+  fun `in a single null`() {
+    assertEquals("e.x in :p0" to mapOf("p0" to listOf(null)), render(`in`("x", listOf(null))))
+    assertEquals("e.x = :p0" to mapOf<String, Any>("p0" to 1), render(`in`("x", listOf(1))))
+  }
+
+  @Test
+  fun `custom condition with literal question mark`() {
+    val custom = Specification<Any> { alias, jpql, values ->
+      jpql.append("$alias.t like '%?%' and $alias.n = ").append(VALUE_MARKER)
+      values.add(5)
+    }
+    assertEquals("e.t like '%?%' and e.n = :p0" to mapOf<String, Any>("p0" to 5), render(custom))
+  }
+
+  @Test
+  fun `value markers not match values`() {
+    assertThrows<IllegalArgumentException> { render(Specification { _, jpql, _ -> jpql.append(VALUE_MARKER) }) }
+    assertThrows<IllegalArgumentException> { render(Specification { _, jpql, values -> jpql.append("1 = 1"); values.add(1) }) }
+  }
+
+  @Test
+  fun `invalid path`() {
+    assertThrows<IllegalArgumentException> { eq<Any>("a; delete from Book", 1) }
+  }
+}
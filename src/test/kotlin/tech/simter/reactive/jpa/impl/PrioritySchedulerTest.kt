@@ -0,0 +1,136 @@
+package tech.simter.reactive.jpa.impl
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import reactor.kotlin.test.test
+import tech.simter.reactive.jpa.SchedulingClass
+import tech.simter.reactive.jpa.SchedulingClass.BULK
+import tech.simter.reactive.jpa.SchedulingClass.INTERACTIVE
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.LongSupplier
+
+class PrioritySchedulerTest {
+  private val scheduler = PriorityScheduler(4)
+  private val wrapper = ReactiveJpaWrapperImpl(scheduler)
+
+  @AfterEach
+  fun dispose() {
+    scheduler.dispose()
+  }
+
+  /**
+   * Block the worker of a single worker scheduler, the following scheduled tasks are queued until the returned latch released.
+   */
+  private fun blockWorker(scheduler: PriorityScheduler): CountDownLatch {
+    val started = CountDownLatch(1)
+    val gate = CountDownLatch(1)
+    scheduler.forClass(INTERACTIVE).schedule {
+      started.countDown()
+      gate.await()
+    }
+    assertTrue(started.await(5, TimeUnit.SECONDS))
+    return gate
+  }
+
+  /**
+   * Queue the named tasks in order, each task adds its name to the order and counts down the latch.
+   */
+  private fun queue(scheduler: PriorityScheduler, order: MutableList<String>, done: CountDownLatch, tasks: List<Pair<String, SchedulingClass>>) {
+    tasks.forEach { (name, c) ->
+      scheduler.forClass(c).schedule {
+        order.add(name)
+        done.countDown()
+      }
+    }
+  }
+
+  private fun tasks(prefix: String, c: SchedulingClass, count: Int): List<Pair<String, SchedulingClass>> =
+    List(count) { "$prefix${it + 1}" to c }
+
+  @Test
+  fun `run on scheduler threads`() {
+    wrapper.fromCallable<String> { Thread.currentThread().name }
+      .contextWrite(BULK.toContext())
+      .test()
+      .consumeNextWith { assertTrue(it.startsWith("reactive-jpa-")) }
+      .verifyComplete()
+    wrapper.fromIterable<String> { listOf(Thread.currentThread().name) }
+      .test()
+      .consumeNextWith { assertTrue(it.startsWith("reactive-jpa-")) }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `bulk share keeps workers for interactive tasks`() {
+    // with 4 workers the bulk share is 1, so the second bulk task is queued behind the blocked first one
+    val gate = CountDownLatch(1)
+    val first = CountDownLatch(1)
+    val started = AtomicInteger()
+    repeat(2) {
+      scheduler.forClass(BULK).schedule {
+        started.incrementAndGet()
+        first.countDown()
+        gate.await()
+      }
+    }
+    try {
+      assertTrue(first.await(5, TimeUnit.SECONDS))
+
+      // interactive task run while the first bulk task blocked and the second queued
+      wrapper.fromCallable<Int> { 1 }.test().expectNext(1).expectComplete().verify(Duration.ofSeconds(5))
+      assertEquals(1, started.get())
+    } finally {
+      gate.countDown()
+    }
+  }
+
+  @Test
+  fun `weighted fair dispatch`() {
+    val scheduler = PriorityScheduler(1, Duration.ofHours(1), mapOf())
+    try {
+      val gate = blockWorker(scheduler)
+      val order = CopyOnWriteArrayList<String>()
+      val done = CountDownLatch(18)
+      queue(scheduler, order, done, tasks("B", BULK, 2) + tasks("I", INTERACTIVE, 16))
+      gate.countDown()
+      assertTrue(done.await(5, TimeUnit.SECONDS))
+
+      // interactive weight 8 vs bulk weight 1: 8 interactive tasks between the bulk tasks
+      assertEquals(listOf("B1") + tasks("I", INTERACTIVE, 8).map { it.first } + "B2"
+        + tasks("I", INTERACTIVE, 16).drop(8).map { it.first }, order)
+    } finally {
+      scheduler.dispose()
+    }
+  }
+
+  @Test
+  fun `starving task dispatched first`() {
+    val clock = AtomicLong()
+    val scheduler = PriorityScheduler(1, Duration.ofSeconds(1), mapOf(), LongSupplier { clock.get() })
+    try {
+      val gate = blockWorker(scheduler)
+
+      // the bulk tasks wait 1s and the interactive tasks wait 0.5s when the worker released
+      val order = CopyOnWriteArrayList<String>()
+      val done = CountDownLatch(18)
+      queue(scheduler, order, done, tasks("B", BULK, 2))
+      clock.set(TimeUnit.MILLISECONDS.toNanos(500))
+      queue(scheduler, order, done, tasks("I", INTERACTIVE, 16))
+      clock.set(TimeUnit.SECONDS.toNanos(1))
+      gate.countDown()
+      assertTrue(done.await(5, TimeUnit.SECONDS))
+
+      // the starving bulk tasks run before all the interactive tasks, instead of B2 after 8 interactive tasks
+      assertEquals(listOf("B1", "B2") + tasks("I", INTERACTIVE, 16).map { it.first }, order)
+    } finally {
+      scheduler.dispose()
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package tech.simter.reactive.jpa.impl
+
+import org.hibernate.SessionFactory
+import org.hibernate.stat.Statistics
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig
+import reactor.kotlin.test.test
+import tech.simter.reactive.jpa.FetchPlan
+import tech.simter.reactive.jpa.ReactiveEntityManager
+import tech.simter.reactive.jpa.ReactiveJpaWrapper
+import java.util.*
+import javax.persistence.*
+
+@SpringJUnitConfig(ReactiveEntityManagerImplFetchPlanTest.Cfg::class)
+class ReactiveEntityManagerImplFetchPlanTest @Autowired constructor(
+  private val emf: EntityManagerFactory,
+  private val rem: ReactiveEntityManager
+) {
+  @Configuration
+  class Cfg {
+    @Bean
+    fun entityManagerFactory(): EntityManagerFactory {
+      return Persistence.createEntityManagerFactory("default", mapOf("hibernate.generate_statistics" to "true"))
+    }
+
+    @Bean
+    fun reactiveJpaWrapper(): ReactiveJpaWrapper {
+      return ReactiveJpaWrapperImpl(null)
+    }
+
+    @Bean
+    fun reactiveEntityManager(wrapper: ReactiveJpaWrapper, emf: EntityManagerFactory): ReactiveEntityManager {
+      return ReactiveEntityManagerImpl(wrapper, emf)
+    }
+  }
+
+  private fun randomString(): String = UUID.randomUUID().toString()
+
+  /** The hibernate statistics cleared, to count the statements of the next operation */
+  private fun clearStatistics(): Statistics {
+    val statistics = emf.unwrap(SessionFactory::class.java).statistics
+    statistics.clear()
+    return statistics
+  }
+
+  private fun createAuthors(count: Int, postsPerAuthor: Int, commentsPerPost: Int = 0): List<Author> {
+    val authors = List(count) { Author(id = randomString(), name = "test") }
+    val em = emf.createEntityManager()
+    em.transaction.begin()
+    authors.forEach { author ->
+      em.persist(author)
+      repeat(postsPerAuthor) {
+        val post = Post(id = randomString(), title = "test", author = author)
+        em.persist(post)
+        repeat(commentsPerPost) { em.persist(Comment(id = randomString(), text = "test", post = post)) }
+      }
+    }
+    em.transaction.commit()
+    em.close()
+    return authors
+  }
+
+  private fun assertPostsLoaded(author: Author, count: Int) {
+    assertTrue(emf.persistenceUnitUtil.isLoaded(author, "posts"))
+    assertEquals(count, author.posts.size)
+  }
+
+  @Test
+  fun `find without fetch plan`() {
+    val author = createAuthors(1, 2)[0]
+    rem.find(Author::class.java, author.id!!)
+      .test()
+      .consumeNextWith { assertFalse(emf.persistenceUnitUtil.isLoaded(it, "posts")) }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `find with attribute paths`() {
+    val author = createAuthors(1, 2)[0]
+    rem.find(Author::class.java, author.id!!, FetchPlan.of("posts"))
+      .test()
+      .consumeNextWith { assertPostsLoaded(it, 2) }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `find with named graph`() {
+    val author = createAuthors(1, 2)[0]
+    rem.find(Author::class.java, author.id!!, FetchPlan.named("Author.posts"))
+      .test()
+      .consumeNextWith { assertPostsLoaded(it, 2) }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `query with attribute paths`() {
+    val authors = createAuthors(2, 2)
+    rem.createQuery("select a from Author a where a.id in :ids", Author::class.java)
+      .setParameter("ids", authors.map { it.id })
+      .setFetchPlan(FetchPlan.of("posts"))
+      .resultList.collectList()
+      .test()
+      .consumeNextWith { list ->
+        assertEquals(2, list.size)
+        list.forEach { assertPostsLoaded(it, 2) }
+      }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `query with batch fetch`() {
+    val authors = createAuthors(3, 2)
+    val statistics = clearStatistics()
+    rem.createQuery("select a from Author a where a.id in :ids order by a.id", Author::class.java)
+      .setParameter("ids", authors.map { it.id })
+      .setMaxResults(2)
+      .setFetchPlan(FetchPlan.of("posts.author").batch())
+      .resultList.collectList()
+      .test()
+      .consumeNextWith { list ->
+        assertEquals(authors.map { it.id }.sorted().take(2), list.map { it.id })
+        list.forEach { assertPostsLoaded(it, 2) }
+      }
+      .verifyComplete()
+
+    // the paged query, then one query per level: the posts of the authors and the author of the posts
+    assertEquals(3, statistics.prepareStatementCount)
+  }
+
+  @Test
+  fun `query with nested collection batch fetch`() {
+    val authors = createAuthors(2, 2, 3)
+    val statistics = clearStatistics()
+    rem.createQuery("select a from Author a where a.id in :ids", Author::class.java)
+      .setParameter("ids", authors.map { it.id })
+      .setFetchPlan(FetchPlan.of("posts.comments").batch())
+      .resultList.collectList()
+      .test()
+      .consumeNextWith { list ->
+        assertEquals(2, list.size)
+        list.forEach { author ->
+          assertPostsLoaded(author, 2)
+          author.posts.forEach {
+            assertTrue(emf.persistenceUnitUtil.isLoaded(it, "comments"))
+            assertEquals(3, it.comments.size)
+          }
+        }
+      }
+      .verifyComplete()
+
+    // the query, the posts keyed by the author ids and the comments keyed by the post ids, without a cartesian product
+    assertEquals(3, statistics.prepareStatementCount)
+  }
+
+  @Test
+  fun `single result with batch fetch`() {
+    val author = createAuthors(1, 2)[0]
+    rem.createQuery("select a from Author a where a.id = :id", Author::class.java)
+      .setParameter("id", author.id!!)
+      .setFetchPlan(FetchPlan.of("posts").batch())
+      .singleResult
+      .test()
+      .consumeNextWith { assertPostsLoaded(it, 2) }
+      .verifyComplete()
+  }
+}
+
+@Entity
+@NamedEntityGraph(name = "Author.posts", attributeNodes = [NamedAttributeNode("posts")])
+class Author(
+  @Id var id: String? = null,
+  var name: String? = null,
+  @OneToMany(mappedBy = "author")
+  var posts: MutableList<Post> = mutableListOf()
+)
+
+@Entity
+class Post(
+  @Id var id: String? = null,
+  var title: String? = null,
+  @ManyToOne
+  var author: Author? = null,
+  @OneToMany(mappedBy = "post")
+  var comments: MutableList<Comment> = mutableListOf()
+)
+
+@Entity
+class Comment(
+  @Id var id: String? = null,
+  var text: String? = null,
+  @ManyToOne
+  var post: Post? = null
+)
@@ -0,0 +1,245 @@
+package tech.simter.reactive.jpa.impl
+
+import org.HdrHistogram.ConcurrentHistogram
+import org.HdrHistogram.Histogram
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.scheduler.Scheduler
+import reactor.core.scheduler.Schedulers
+import tech.simter.reactive.jpa.ReactiveEntityManager
+import tech.simter.reactive.jpa.ReactiveJpaWrapper
+import tech.simter.reactive.jpa.SchedulingClass
+import java.io.File
+import java.io.PrintStream
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Supplier
+import java.util.stream.Stream
+import javax.persistence.EntityManager
+import javax.persistence.EntityManagerFactory
+import javax.persistence.EntityTransaction
+import javax.persistence.Persistence
+
+/**
+ * Load test of [ReactiveEntityManagerImpl] with an embedded H2 database of the test 'default' persistence unit.
+ *
+ * It drives a mixed find/query/persist workload at each configured concurrency for each scheduler configuration,
+ * and reports the latency, scheduler queue wait and connection wait HDR histograms, the throughput and the peak
+ * thread count to 'target/load-test'.
+ *
+ * Run by `mvn test -P load-test`, with the optional system properties:
+ * - load.schedulers: the scheduler configurations, default 'boundedElastic,fixed,priority'
+ * - load.concurrency: the concurrent subscribers, default '1000,10000'
+ * - load.operations: the operations of each run, default 20000
+ * - load.threads: the scheduler threads of 'fixed' and 'priority', default 2 * cpu cores
+ * - load.poolSize: the hibernate connection pool size, default 20
+ * - load.mix: the find:query:persist ratio, default '60:30:10'
+ * - load.seed: the random seed of the operations, default 42
+ */
+@Tag("load")
+class ReactiveEntityManagerImplLoadTest {
+  private val schedulers = property("load.schedulers", "boundedElastic,fixed,priority").split(",").map { it.trim() }
+  private val concurrencies = property("load.concurrency", "1000,10000").split(",").map { it.trim().toInt() }
+  private val operations = property("load.operations", "20000").toInt()
+  private val threads = property("load.threads", "${2 * Runtime.getRuntime().availableProcessors()}").toInt()
+  private val poolSize = property("load.poolSize", "20").toInt()
+  private val mix = property("load.mix", "60:30:10").split(":").map { it.trim().toInt() }
+  private val randomSeed = property("load.seed", "42").toLong()
+  private val seedCount = 1000
+  private val titles = List(50) { "title-$it" }
+  private val reportDir = File("target/load-test")
+
+  private fun property(key: String, default: String): String = System.getProperty(key, default)
+
+  private fun createScheduler(name: String): Scheduler = when (name) {
+    "boundedElastic" -> Schedulers.newBoundedElastic(10 * Runtime.getRuntime().availableProcessors(), 100_000, "jpa-elastic")
+    "fixed" -> Schedulers.fromExecutorService(Executors.newFixedThreadPool(threads))
+    "priority" -> PriorityScheduler(threads)
+    else -> throw IllegalArgumentException("Unknown scheduler configuration: $name")
+  }
+
+  @Test
+  fun load() {
+    reportDir.mkdirs()
+    val report = StringBuilder()
+    report.appendLine("seed=$randomSeed, operations=$operations, threads=$threads, poolSize=$poolSize, mix(find:query:persist)=${mix.joinToString(":")}")
+    report.appendLine(String.format("%-16s %8s %10s %9s %9s %9s %9s %9s %12s %12s %8s %7s",
+      "scheduler", "conc", "ops/s", "p50(ms)", "p90(ms)", "p99(ms)", "p999(ms)", "max(ms)",
+      "queueP99(ms)", "connP99(ms)", "threads", "errors"))
+    for (name in schedulers) {
+      for (concurrency in concurrencies) report.appendLine(run(name, concurrency))
+    }
+    File(reportDir, "report.txt").writeText(report.toString())
+  }
+
+  private fun run(name: String, concurrency: Int): String {
+    val latency = ConcurrentHistogram(3)
+    val queueWait = ConcurrentHistogram(3)
+    val connectionWait = ConcurrentHistogram(3)
+    val errors = AtomicLong()
+    val scheduler = createScheduler(name)
+    val emf = Persistence.createEntityManagerFactory("default", mapOf(
+      "hibernate.connection.url" to "jdbc:h2:mem:load-$name-$concurrency",
+      "hibernate.connection.pool_size" to poolSize.toString()
+    ))
+    try {
+      val rem = ReactiveEntityManagerImpl(
+        TimedWrapper(ReactiveJpaWrapperImpl(scheduler), queueWait),
+        timedEntityManagerFactory(emf, connectionWait)
+      )
+      val ids = seed(emf)
+
+      // warm up then reset the measurement
+      drive(rem, ids, 0, operations / 10, concurrency, ConcurrentHistogram(3), AtomicLong())
+      queueWait.reset()
+      connectionWait.reset()
+      val threadBean = ManagementFactory.getThreadMXBean()
+      threadBean.resetPeakThreadCount()
+
+      val start = System.nanoTime()
+      drive(rem, ids, operations / 10, operations, concurrency, latency, errors)
+      val seconds = (System.nanoTime() - start) / 1e9
+
+      File(reportDir, "$name-$concurrency.hgrm").outputStream().use {
+        latency.outputPercentileDistribution(PrintStream(it), 1e6)
+      }
+      return String.format("%-16s %8d %10.0f %9.2f %9.2f %9.2f %9.2f %9.2f %12.2f %12.2f %8d %7d",
+        name, concurrency, operations / seconds,
+        ms(latency, 50.0), ms(latency, 90.0), ms(latency, 99.0), ms(latency, 99.9), latency.maxValue / 1e6,
+        ms(queueWait, 99.0), ms(connectionWait, 99.0), threadBean.peakThreadCount, errors.get())
+    } finally {
+      emf.close()
+      scheduler.dispose()
+    }
+  }
+
+  private fun ms(histogram: Histogram, percentile: Double): Double =
+    histogram.getValueAtPercentile(percentile) / 1e6
+
+  private fun seed(emf: EntityManagerFactory): List<String> {
+    val books = List(seedCount) { Book(id = "book-$it", title = titles[it % titles.size]) }
+    val em = emf.createEntityManager()
+    em.transaction.begin()
+    books.forEach { em.persist(it) }
+    em.transaction.commit()
+    em.close()
+    return books.map { it.id!! }
+  }
+
+  private fun drive(
+    rem: ReactiveEntityManager,
+    ids: List<String>,
+    firstIndex: Int,
+    operations: Int,
+    concurrency: Int,
+    latency: Histogram,
+    errors: AtomicLong
+  ) {
+    val total = mix.sum()
+    Flux.range(firstIndex, operations)
+      .flatMap({ index ->
+        Mono.defer {
+          val start = System.nanoTime()
+          operation(rem, ids, index, SplittableRandom(randomSeed + index), total)
+            .doOnError { errors.incrementAndGet() }
+            .onErrorResume { Mono.empty() }
+            .doFinally { latency.recordValue(System.nanoTime() - start) }
+        }
+      }, concurrency)
+      .blockLast()
+  }
+
+  /**
+   * The operation of the index, drawn from the random seeded by the index for a reproducible workload.
+   */
+  private fun operation(rem: ReactiveEntityManager, ids: List<String>, index: Int, random: SplittableRandom, total: Int): Mono<Void> {
+    val kind = random.nextInt(total)
+    return when {
+      kind < mix[0] -> rem.find(Book::class.java, ids[random.nextInt(ids.size)]).then()
+      kind < mix[0] + mix[1] -> rem.createQuery("select b from Book b where b.title = :title", Book::class.java)
+        .setParameter("title", titles[random.nextInt(titles.size)])
+        .setMaxResults(10)
+        .resultList.then()
+      else -> rem.persist(Book(id = "load-$index", title = "load"))
+        .contextWrite(SchedulingClass.BULK.toContext())
+    }
+  }
+
+  /**
+   * Record the time from subscription to the blocking call start on the scheduler.
+   */
+  private class TimedWrapper(private val delegate: ReactiveJpaWrapper, private val queueWait: Histogram) : ReactiveJpaWrapper {
+    private fun record(start: Long) = queueWait.recordValue(System.nanoTime() - start)
+
+    override fun <T> fromRunnable(runnable: Runnable): Mono<T> = Mono.defer {
+      val start = System.nanoTime()
+      delegate.fromRunnable<T> { record(start); runnable.run() }
+    }
+
+    override fun <T> fromCallable(callable: Callable<out T>): Mono<T> = Mono.defer {
+      val start = System.nanoTime()
+      delegate.fromCallable<T> { record(start); callable.call() }
+    }
+
+    override fun <T> fromIterable(supplier: Supplier<Iterable<T>>): Flux<T> = Flux.defer {
+      val start = System.nanoTime()
+      delegate.fromIterable<T> { record(start); supplier.get() }
+    }
+
+    override fun <T> fromStream(supplier: Supplier<Stream<out T>>): Flux<T> = Flux.defer {
+      val start = System.nanoTime()
+      delegate.fromStream<T> { record(start); supplier.get() }
+    }
+  }
+
+  /**
+   * Record the time of [EntityTransaction.begin] as the connection wait,
+   * the connection of a resource local transaction is acquired on begin.
+   */
+  private fun timedEntityManagerFactory(emf: EntityManagerFactory, connectionWait: Histogram): EntityManagerFactory =
+    proxy(emf, EntityManagerFactory::class.java) { method, args ->
+      val result = invoke(emf, method, args)
+      if (method.name != "createEntityManager") result
+      else {
+        val em = result as EntityManager
+        proxy(em, EntityManager::class.java) { emMethod, emArgs ->
+          val emResult = invoke(em, emMethod, emArgs)
+          if (emMethod.name != "getTransaction") emResult
+          else {
+            val tx = emResult as EntityTransaction
+            proxy(tx, EntityTransaction::class.java) { txMethod, txArgs ->
+              if (txMethod.name != "begin") invoke(tx, txMethod, txArgs)
+              else {
+                val start = System.nanoTime()
+                try {
+                  invoke(tx, txMethod, txArgs)
+                } finally {
+                  connectionWait.recordValue(System.nanoTime() - start)
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+
+  private fun <T : Any> proxy(target: T, type: Class<T>, handler: (Method, Array<Any?>?) -> Any?): T =
+    type.cast(Proxy.newProxyInstance(type.classLoader, arrayOf(type), InvocationHandler { _, method, args ->
+      handler(method, args)
+    }))
+
+  private fun invoke(target: Any, method: Method, args: Array<Any?>?): Any? = try {
+    method.invoke(target, *(args ?: emptyArray()))
+  } catch (e: InvocationTargetException) {
+    throw e.targetException
+  }
+}
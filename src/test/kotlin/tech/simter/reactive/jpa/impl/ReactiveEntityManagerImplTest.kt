@@ -1,19 +1,21 @@
 package tech.simter.reactive.jpa.impl
 
+import org.hibernate.SessionFactory
+import org.hibernate.stat.Statistics
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.Test
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig
+import reactor.core.publisher.Flux
 import reactor.kotlin.test.test
 import tech.simter.reactive.jpa.ReactiveEntityManager
 import tech.simter.reactive.jpa.ReactiveJpaWrapper
+import tech.simter.reactive.jpa.Specification
+import java.time.Duration
 import java.util.*
-import javax.persistence.Entity
-import javax.persistence.EntityManagerFactory
-import javax.persistence.Id
-import javax.persistence.Persistence
+import javax.persistence.*
 
 @SpringJUnitConfig(ReactiveJpaWrapperImplTest.Cfg::class)
 class ReactiveJpaWrapperImplTest @Autowired constructor(
@@ -24,7 +26,7 @@ class ReactiveJpaWrapperImplTest @Autowired constructor(
   class Cfg {
     @Bean
     fun entityManagerFactory(): EntityManagerFactory {
-      return Persistence.createEntityManagerFactory("default")
+      return Persistence.createEntityManagerFactory("default", mapOf("hibernate.generate_statistics" to "true"))
     }
 
     @Bean
@@ -40,6 +42,13 @@ class ReactiveJpaWrapperImplTest @Autowired constructor(
 
   private fun randomString(): String = UUID.randomUUID().toString()
 
+  /** The hibernate statistics cleared, to count the statements of the next operation */
+  private fun clearStatistics(): Statistics {
+    val statistics = emf.unwrap(SessionFactory::class.java).statistics
+    statistics.clear()
+    return statistics
+  }
+
   private fun createBooks(vararg books: Book) {
     val em = emf.createEntityManager()
     em.transaction.begin()
@@ -113,13 +122,133 @@ class ReactiveJpaWrapperImplTest @Autowired constructor(
     createBooks(*books.toTypedArray())
 
     // do remove
+    val statistics = clearStatistics()
     rem.remove(*books.toTypedArray()).test().verifyComplete()
 
-    // verify removed
+    // verify removed by 1 select and 2 deletes
+    assertEquals(1L, statistics.queryExecutionCount)
+    assertEquals(3L, statistics.prepareStatementCount)
     val list = findBooks("select b from Book b where b.id in :ids", mapOf("ids" to books.map { it.id }))
     assertEquals(0, list.size)
   }
 
+  @Test
+  fun `remove stale version`() {
+    // prepare data and update it after the stale copy detached
+    val stale = VersionedBook(id = randomString(), title = "test")
+    val em = emf.createEntityManager()
+    em.transaction.begin()
+    em.persist(stale)
+    em.transaction.commit()
+    em.clear()
+    em.transaction.begin()
+    em.find(VersionedBook::class.java, stale.id).title = "updated"
+    em.transaction.commit()
+    em.close()
+
+    // do remove
+    rem.remove(stale).test().verifyError(OptimisticLockException::class.java)
+
+    // verify not removed
+    val check = emf.createEntityManager()
+    assertNotNull(check.find(VersionedBook::class.java, stale.id))
+    check.close()
+  }
+
+  @Test
+  fun `merge many`() {
+    // prepare data
+    val existing = List(3) { Book(id = randomString(), title = "test") }
+    createBooks(*existing.toTypedArray())
+
+    // do merge
+    val books = existing.map { Book(id = it.id, title = "updated") } + Book(id = randomString(), title = "new")
+    val statistics = clearStatistics()
+    rem.merge(*books.toTypedArray()).collectList()
+      .test()
+      .expectNext(books)
+      .verifyComplete()
+
+    // verify merged by 1 select, 3 updates and 1 insert
+    assertEquals(1L, statistics.queryExecutionCount)
+    assertEquals(5L, statistics.prepareStatementCount)
+    books.forEach { assertEquals(it, findBookById(it.id!!)) }
+  }
+
+  @Test
+  fun `merge duplicate new ids`() {
+    // do merge
+    val id = randomString()
+    val first = Book(id = id, title = "first")
+    rem.merge(first, Book(id = id, title = "last")).collectList()
+      .test()
+      .consumeNextWith {
+        assertEquals(2, it.size)
+        assertSame(first, it[0])
+        assertSame(first, it[1])
+      }
+      .verifyComplete()
+
+    // verify merged to the last state
+    assertEquals(Book(id = id, title = "last"), findBookById(id))
+  }
+
+  @Test
+  fun `merge new with cascade associations`() {
+    // prepare data
+    val existing = ShelfItem(id = randomString(), name = "existing")
+    val em = emf.createEntityManager()
+    em.transaction.begin()
+    em.persist(existing)
+    em.transaction.commit()
+    em.close()
+
+    // do merge a new shelf with the detached existing item and a new item
+    val added = ShelfItem(id = randomString(), name = "added")
+    val shelf = Shelf(id = randomString(), items = mutableListOf(existing, added))
+    rem.merge(shelf).test().expectNextCount(1).verifyComplete()
+
+    // verify merged with cascade
+    val check = emf.createEntityManager()
+    assertEquals(setOf(existing, added), check.find(Shelf::class.java, shelf.id).items.toSet())
+    check.close()
+  }
+
+  @Test
+  fun `merge all`() {
+    // do merge
+    val books = List(3) { Book(id = randomString(), title = "test") }
+    val statistics = clearStatistics()
+    rem.mergeAll(Flux.fromIterable(books)).collectList()
+      .test()
+      .expectNext(books)
+      .verifyComplete()
+
+    // verify merged by 1 select and 3 inserts
+    assertEquals(1L, statistics.queryExecutionCount)
+    assertEquals(4L, statistics.prepareStatementCount)
+    books.forEach { assertEquals(it, findBookById(it.id!!)) }
+  }
+
+  @Test
+  fun `remove by id`() {
+    // prepare data
+    val books = List(2) { Book(id = randomString(), title = "test") }
+    createBooks(*books.toTypedArray())
+
+    // do remove
+    val statistics = clearStatistics()
+    rem.removeById(Book::class.java, books.map { it.id } + randomString())
+      .test()
+      .expectNext(2)
+      .verifyComplete()
+
+    // verify removed by 1 delete without loading
+    assertEquals(1L, statistics.prepareStatementCount)
+    assertEquals(0L, statistics.entityLoadCount)
+    books.forEach { assertNull(findBookById(it.id!!)) }
+  }
+
   @Test
   fun `found it`() {
     // prepare data
@@ -203,6 +332,125 @@ class ReactiveJpaWrapperImplTest @Autowired constructor(
       .verifyComplete()
   }
 
+  @Test
+  fun `count query`() {
+    // prepare data
+    val books = List(3) { Book(id = randomString(), title = "test") }
+    createBooks(*books.toTypedArray())
+
+    // count and verify
+    rem.createQuery("select b from Book b where b.id in :ids order by b.title", Book::class.java)
+      .setParameter("ids", books.map { it.id })
+      .setMaxResults(1)
+      .count()
+      .test()
+      .expectNext(3L)
+      .verifyComplete()
+  }
+
+  @Test
+  fun `exists query`() {
+    // prepare data
+    val book = Book(id = randomString(), title = "test")
+    createBooks(book)
+
+    // verify exists
+    rem.createQuery("select b from Book b where b.id = :id order by b.title", Book::class.java)
+      .setParameter("id", book.id!!)
+      .exists()
+      .test()
+      .expectNext(true)
+      .verifyComplete()
+
+    // verify not exists
+    rem.createQuery("select b from Book b where b.id = :id", Book::class.java)
+      .setParameter("id", randomString())
+      .exists()
+      .test()
+      .expectNext(false)
+      .verifyComplete()
+  }
+
+  @Test
+  fun `page query`() {
+    // prepare data
+    val books = List(3) { Book(id = randomString(), title = "test") }
+    createBooks(*books.toTypedArray())
+
+    // query and verify
+    rem.createQuery("select b from Book b where b.id in :ids order by b.id", Book::class.java)
+      .setParameter("ids", books.map { it.id })
+      .setFirstResult(1)
+      .setMaxResults(1)
+      .getPage(Duration.ofSeconds(10))
+      .test()
+      .consumeNextWith { page ->
+        assertEquals(1, page.offset)
+        assertEquals(1, page.limit)
+        assertEquals(3L, page.total)
+        assertEquals(listOf(books.sortedBy { it.id }[1]), page.rows)
+      }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `page query count cache keyed by parameter equality`() {
+    // prepare data
+    val title = randomString()
+    createBooks(*Array(2) { Book(id = randomString(), title = title) })
+    fun page(vararg titles: String) = rem.createQuery("select b from Book b where b.title in :titles", Book::class.java)
+      .setParameter("titles", titles.toList())
+      .setMaxResults(1)
+      .getPage(Duration.ofSeconds(10))
+      .map { it.total }
+    page(title).test().expectNext(2L).verifyComplete()
+
+    // an equal filter reuses the cached total, a different filter not
+    createBooks(Book(id = randomString(), title = title))
+    page(title).test().expectNext(2L).verifyComplete()
+    page(title, randomString()).test().expectNext(3L).verifyComplete()
+  }
+
+  @Test
+  fun `page query not changed by reusing the query`() {
+    // prepare data
+    val books = List(3) { Book(id = randomString(), title = "test") }
+    createBooks(*books.toTypedArray())
+
+    // create the page then reuse the query before subscribe
+    val query = rem.createQuery("select b from Book b where b.id in :ids order by b.id", Book::class.java)
+      .setParameter("ids", books.map { it.id })
+      .setFirstResult(0)
+      .setMaxResults(2)
+    val page = query.page
+    query.setFirstResult(2).setMaxResults(1).setParameter("ids", listOf(books[0].id))
+
+    // verify
+    page.test()
+      .consumeNextWith {
+        assertEquals(0, it.offset)
+        assertEquals(2, it.limit)
+        assertEquals(3L, it.total)
+        assertEquals(books.sortedBy { b -> b.id }.take(2), it.rows)
+      }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `query by specification`() {
+    // prepare data
+    val books = List(3) { Book(id = randomString(), title = "test") }
+    createBooks(*books.toTypedArray())
+
+    // query and verify
+    val ids = books.map { it.id!! }
+    rem.createQuery(Book::class.java, Specification.`in`<Book>("id", ids).and(Specification.eq("title", "test")), "id desc")
+      .resultList.collectList()
+      .test()
+      .expectNext(books.sortedByDescending { it.id })
+      .verifyComplete()
+  }
+
   @Test
   fun `execute delete`() {
     // prepare data
@@ -243,4 +491,18 @@ class ReactiveJpaWrapperImplTest @Autowired constructor(
 @Entity
 data class Book(@Id var id: String?, var title: String?) {
   constructor() : this(null, null)
-}
\ No newline at end of file
+}
+
+@Entity
+data class VersionedBook(@Id var id: String? = null, var title: String? = null, @Version var version: Int? = null)
+
+@Entity
+class Shelf(
+  @Id var id: String? = null,
+  @OneToMany(cascade = [CascadeType.ALL])
+  @JoinColumn(name = "shelf_id")
+  var items: MutableList<ShelfItem> = mutableListOf()
+)
+
+@Entity
+data class ShelfItem(@Id var id: String? = null, var name: String? = null)
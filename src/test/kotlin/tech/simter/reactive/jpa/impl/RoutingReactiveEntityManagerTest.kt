@@ -0,0 +1,238 @@
+package tech.simter.reactive.jpa.impl
+
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
+import reactor.kotlin.test.test
+import tech.simter.reactive.jpa.ReactiveEntityManager
+import tech.simter.reactive.jpa.ReactiveTypedQuery
+import tech.simter.reactive.jpa.impl.RoutingReactiveEntityManager.Shard
+import tech.simter.reactive.jpa.impl.RoutingReactiveEntityManager.Target
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Proxy
+import java.util.*
+import java.util.concurrent.RejectedExecutionException
+import javax.persistence.EntityManagerFactory
+import javax.persistence.Persistence
+import javax.persistence.PersistenceException
+
+class RoutingReactiveEntityManagerTest {
+  companion object {
+    private val emfs = mutableListOf<EntityManagerFactory>()
+
+    private fun createEntityManagerFactory(name: String): EntityManagerFactory {
+      val emf = Persistence.createEntityManagerFactory("default", mapOf(
+        "hibernate.connection.url" to "jdbc:h2:mem:routing-$name;DB_CLOSE_DELAY=-1"
+      ))
+      emfs.add(emf)
+      return emf
+    }
+
+    private val primary0 = createEntityManagerFactory("primary0")
+    private val replica0 = createEntityManagerFactory("replica0")
+    private val primary1 = createEntityManagerFactory("primary1")
+
+    private fun target(name: String, emf: EntityManagerFactory): Target =
+      Target.of(name, emf, Schedulers.boundedElastic(), 100)
+
+    private val rem = RoutingReactiveEntityManager(
+      listOf(
+        Shard(target("primary0", primary0), listOf(target("replica0", replica0))),
+        Shard(target("primary1", primary1))
+      ),
+      { (it as Int) % 2 }
+    )
+
+    @JvmStatic
+    @AfterAll
+    fun close() {
+      emfs.filter { it.isOpen }.forEach { it.close() }
+    }
+  }
+
+  private fun randomString(): String = UUID.randomUUID().toString()
+
+  private fun createBooks(emf: EntityManagerFactory, vararg books: Book) {
+    val em = emf.createEntityManager()
+    em.transaction.begin()
+    for (book in books) em.persist(book)
+    em.transaction.commit()
+    em.close()
+  }
+
+  private fun findBookById(emf: EntityManagerFactory, id: String): Book? {
+    val em = emf.createEntityManager()
+    val book = em.find(Book::class.java, id)
+    em.close()
+    return book
+  }
+
+  @Test
+  fun `read from replica`() {
+    val onReplica = Book(id = randomString(), title = "replica")
+    val onPrimary = Book(id = randomString(), title = "primary")
+    createBooks(replica0, onReplica)
+    createBooks(primary0, onPrimary)
+
+    val shard = rem.shard(0)
+    shard.find(Book::class.java, onReplica.id!!).test().expectNext(onReplica).verifyComplete()
+    shard.find(Book::class.java, onPrimary.id!!).test().verifyComplete()
+    shard.createQuery("select b from Book b where b.id = :id", Book::class.java)
+      .setParameter("id", onReplica.id!!)
+      .resultList
+      .test().expectNext(onReplica).verifyComplete()
+  }
+
+  @Test
+  fun `write to primary`() {
+    val book = Book(id = randomString(), title = "test")
+    rem.shard(0).persist(book).test().verifyComplete()
+
+    assertEquals(book, findBookById(primary0, book.id!!))
+    assertNull(findBookById(replica0, book.id!!))
+  }
+
+  @Test
+  fun `require shard key with multiple shards`() {
+    assertThrows(IllegalStateException::class.java) { rem.find(Book::class.java, randomString()) }
+    assertThrows(IllegalStateException::class.java) { rem.persist(Book(id = randomString(), title = "test")) }
+    assertThrows(IllegalStateException::class.java) { rem.createQuery("select b from Book b", Book::class.java) }
+  }
+
+  @Test
+  fun `page not changed by reusing the query`() {
+    // prepare data on the replica that the read runs on
+    val books = List(3) { Book(id = randomString(), title = "test") }
+    createBooks(replica0, *books.toTypedArray())
+
+    // create the page then reuse the query before subscribe
+    val query = rem.shard(0).createQuery("select b from Book b where b.id in :ids order by b.id", Book::class.java)
+      .setParameter("ids", books.map { it.id })
+      .setFirstResult(0)
+      .setMaxResults(2)
+    val page = query.page
+    query.setFirstResult(2).setMaxResults(1).setParameter("ids", listOf(books[0].id))
+
+    // verify
+    page.test()
+      .consumeNextWith {
+        assertEquals(0, it.offset)
+        assertEquals(2, it.limit)
+        assertEquals(3L, it.total)
+        assertEquals(books.sortedBy { b -> b.id }.take(2), it.rows)
+      }
+      .verifyComplete()
+  }
+
+  @Test
+  fun `fall back to primary`() {
+    // a closed replica fails
+    val closed = createEntityManagerFactory("closed")
+    closed.close()
+    val rem = RoutingReactiveEntityManager(listOf(Shard(target("primary0", primary0), listOf(target("closed", closed)))))
+
+    val book = Book(id = randomString(), title = "test")
+    createBooks(primary0, book)
+    rem.find(Book::class.java, book.id!!).test().expectNext(book).verifyComplete()
+  }
+
+  @Test
+  fun `route by shard key`() {
+    val book = Book(id = randomString(), title = "test")
+    rem.shard(1).persist(book).test().verifyComplete()
+
+    assertEquals(book, findBookById(primary1, book.id!!))
+    assertNull(findBookById(primary0, book.id!!))
+    rem.shard(1).find(Book::class.java, book.id!!).test().expectNext(book).verifyComplete()
+  }
+
+  @Test
+  fun `read on least busy replica`() {
+    val replicas = listOf(fakeTarget("replica0", 2), fakeTarget("replica1", 2))
+    val rem = RoutingReactiveEntityManager(listOf(Shard(fakeTarget("primary", 1), replicas)))
+
+    // block an operation on one replica, it still could admit one more
+    val blocked = rem.find(String::class.java, BLOCK).subscribe()
+    try {
+      val idle = replicas.single { it.inFlight == 0 }
+      repeat(3) { rem.find(String::class.java, "a").test().expectNext(idle.name).verifyComplete() }
+    } finally {
+      blocked.dispose()
+    }
+    assertEquals(listOf(0, 0), replicas.map { it.inFlight })
+  }
+
+  @Test
+  fun `read on primary if replicas saturated`() {
+    val primary = fakeTarget("primary", 1)
+    val replicas = listOf(fakeTarget("replica0", 1), fakeTarget("replica1", 1))
+    val rem = RoutingReactiveEntityManager(listOf(Shard(primary, replicas)))
+
+    // fill both replicas
+    val blocked = List(2) { rem.find(String::class.java, BLOCK).subscribe() }
+    assertEquals(listOf(1, 1), replicas.map { it.inFlight })
+    rem.find(String::class.java, "a").test().expectNext("primary").verifyComplete()
+
+    // fill the primary too
+    blocked.forEach { it.dispose() }
+    val blockedAll = List(3) { rem.find(String::class.java, BLOCK).subscribe() }
+    assertEquals(1, primary.inFlight)
+    rem.find(String::class.java, "a").test().verifyError(RejectedExecutionException::class.java)
+    rem.createQuery("a", String::class.java).resultList.test().verifyError(RejectedExecutionException::class.java)
+
+    // released
+    blockedAll.forEach { it.dispose() }
+    assertEquals(listOf(0, 0, 0), (replicas + primary).map { it.inFlight })
+    rem.find(String::class.java, "a").test().expectNextMatches { it.startsWith("replica") }.verifyComplete()
+  }
+
+  @Test
+  fun `read many fall back only before emitted`() {
+    val rem = RoutingReactiveEntityManager(listOf(Shard(fakeTarget("primary", 1), listOf(fakeTarget("replica0", 1)))))
+
+    // fail before emitted
+    rem.createQuery(FAIL, String::class.java).resultList.test().expectNext("primary").verifyComplete()
+
+    // fail after emitted
+    rem.createQuery(FAIL_AFTER_EMITTED, String::class.java).resultList.test()
+      .expectNext("replica0")
+      .verifyError(PersistenceException::class.java)
+  }
+}
+
+private const val BLOCK = "block"
+private const val FAIL = "fail"
+private const val FAIL_AFTER_EMITTED = "fail-after-emitted"
+
+private fun <T> unsupported(type: Class<T>): T = type.cast(Proxy.newProxyInstance(
+  type.classLoader, arrayOf(type),
+  InvocationHandler { _, method, _ -> throw UnsupportedOperationException(method.name) }
+))
+
+private fun fakeTarget(name: String, maxConcurrency: Int): Target =
+  Target(name, FakeEntityManager(name, name.startsWith("replica")), maxConcurrency)
+
+/**
+ * A fake target manager that [find] and query result return its name,
+ * the key [BLOCK] never completes and the keys [FAIL] and [FAIL_AFTER_EMITTED] fail if [failing].
+ */
+@Suppress("UNCHECKED_CAST")
+private class FakeEntityManager(
+  private val name: String,
+  private val failing: Boolean
+) : ReactiveEntityManager by unsupported(ReactiveEntityManager::class.java) {
+  override fun <T> find(entityClass: Class<T>, primaryKey: Any): Mono<T> =
+    if (primaryKey == BLOCK) Mono.never() else Mono.just(name as T)
+
+  override fun <T> createQuery(qlString: String, resultClass: Class<T>): ReactiveTypedQuery<T> =
+    object : ReactiveTypedQuery<T> by unsupported(ReactiveTypedQuery::class.java) as ReactiveTypedQuery<T> {
+      override fun getResultList(): Flux<T> = when {
+        failing && qlString == FAIL -> Flux.error(PersistenceException(name))
+        failing && qlString == FAIL_AFTER_EMITTED -> Flux.concat(Flux.just(name as T), Flux.error<T>(PersistenceException(name)))
+        else -> Flux.just(name as T)
+      }
+    }
+}